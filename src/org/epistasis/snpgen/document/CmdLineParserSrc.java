@@ -670,6 +670,11 @@ public class CmdLineParserSrc {
 				this.emu = emu;
 			}
 
+			public EnumParserOption(final String longForm, final String helpText, final Class<E> emu) {
+				super(/* shortForm */null, longForm, helpText, true);
+				this.emu = emu;
+			}
+
 			@Override
 			public E getDefaultValue() {
 				return null;
@@ -10,6 +10,7 @@ import java.util.Vector;
 
 import org.epistasis.snpgen.document.CmdLineParserSrc.Option;
 import org.epistasis.snpgen.exception.InputException;
+import org.epistasis.snpgen.simulator.ModelGenerationStatistics;
 import org.epistasis.snpgen.simulator.PenetranceTable;
 
 public class SnpGenDocument {
@@ -32,7 +33,14 @@ public class SnpGenDocument {
 	public static final DecimalFormat kDecimalFormatFourDecimals = new DecimalFormat("#.####");
 	public static final DecimalFormat kDecimalFormatTenDecimals = new DecimalFormat("#.##########");
 	private static final String kDefaultAttributeNameBase = "P";
+	// Added to the name and output file of each model of a heritability sweep, followed by its heritability:
+	private static final String kHeritabilitySweepSuffix = "_her-";
 	private static final MIXED_MODEL_DATASET_TYPE kDefaultMultipleModelDatasetType = MIXED_MODEL_DATASET_TYPE.heterogeneous;
+	private static final MODEL_GENERATOR kDefaultModelGenerator = MODEL_GENERATOR.propagation;
+	private static final int kDefaultModelCacheMegabytes = 1024;
+	private static final SELECTION_STRATEGY kDefaultSelectionStrategy = SELECTION_STRATEGY.uniform;
+	private static final NOISE_KERNEL kDefaultNoiseKernel = NOISE_KERNEL.perGenotype;
+	private static final RANDOM_ENGINE kDefaultRandomEngine = RANDOM_ENGINE.legacy;
 
 	private int nextModelNumber;
 	private final ArrayList<DocListener> listeners;
@@ -61,12 +69,48 @@ public class SnpGenDocument {
 	public boolean runDocument;
 	
 	public Integer randomSeed;
+	public Integer modelThreadCount;
+	public boolean legacyModelGeneration;
+	public MODEL_GENERATOR modelGenerator;
+	public boolean seedReplayPopulation;
+	public Double quantileTargetTolerance;
+	public Double quantileStopTolerance;
+	public Integer modelSearchSeconds;
+	public boolean failFastModelSearch;
+	public int concurrentModelCount;
+	public File modelCacheDirectory;
+	public int modelCacheMegabytes;
+	public boolean savePopulation;
+	public File[] populationInputFiles;
+	public SELECTION_STRATEGY selectionStrategy;
+	public Integer modelCheckpointSeconds;
+	public Integer datasetThreadCount;
+	public NOISE_KERNEL noiseKernel;
+	public RANDOM_ENGINE randomEngine;
 	public String predictiveInputFilename;
 	
 
 	public SnpGenDocument(final boolean inCreateFirstDataset) {
 		setNextModelNumber(1);
 		randomSeed = null;
+		modelThreadCount = null;
+		legacyModelGeneration = false;
+		modelGenerator = SnpGenDocument.kDefaultModelGenerator;
+		seedReplayPopulation = false;
+		quantileTargetTolerance = null;
+		quantileStopTolerance = null;
+		modelSearchSeconds = null;
+		failFastModelSearch = false;
+		concurrentModelCount = 1;
+		modelCacheDirectory = null;
+		modelCacheMegabytes = SnpGenDocument.kDefaultModelCacheMegabytes;
+		savePopulation = false;
+		populationInputFiles = new File[0];
+		selectionStrategy = SnpGenDocument.kDefaultSelectionStrategy;
+		modelCheckpointSeconds = null;
+		datasetThreadCount = null;
+		noiseKernel = SnpGenDocument.kDefaultNoiseKernel;
+		randomEngine = SnpGenDocument.kDefaultRandomEngine;
 		modelInputFiles = new File[0];
 		includeMissingValues = new DocBoolean();
 		caseControlRatioBalanced = new DocBoolean();
@@ -316,7 +360,7 @@ public class SnpGenDocument {
 
 			final CmdLineParserSrc modelParserTemplate = new CmdLineParserSrc();
 			final Option<Double> modelHeritabilityOption = modelParserTemplate.addDoubleOption('h', "heritability",
-					"Specifies the heritability of a given model.");
+					"Specifies the heritability of a given model. If given more than once, the model is generated for each heritability in a single search, and each heritability's models are written to files whose names end in '_her-' followed by the heritability.");
 			final Option<Double> modelPrevalenceOption = modelParserTemplate.addDoubleOption('p', "caseProportion",
 					"Specifies the caseProportion of a given model.");
 			final Option<Boolean> modelOddsRatioOption = modelParserTemplate
@@ -361,6 +405,95 @@ public class SnpGenDocument {
 							'r',
 							"randomSeed",
 							"Seed for random number generator used to simulate models and datasets. If specified, repeated runs will generate identical outputs. In this way, a colleague could recreate your datasets without needing to transfer the actual files.");
+			final Option<Integer> modelThreadCountOption = parser
+					.addIntegerOption(
+							"modelThreadCount",
+							"Number of threads used to search for models. If specified, each model-generation try gets its own random seed derived from the randomSeed and the try number, so the models found do not depend on the number of threads. If not specified, tries run one after another on a single random number generator, as in earlier versions.");
+			final Option<Boolean> legacyModelGenerationOption = parser
+					.addBooleanOption(
+							"legacyModelGeneration",
+							"Generate the models the way earlier versions did, so that a given randomSeed generates the same models it did then: pick the empty penetrance-table cells to fill by retrying random cells, normalize the tables step by step, and score each search try on its own instead of in batches. Slower, especially for models with many attributes.");
+			final Option<MODEL_GENERATOR> modelGeneratorOption = parser.addOption(new Option.EnumParserOption<MODEL_GENERATOR>(
+					"modelGenerator",
+					"How random penetrance tables are generated: " + MODEL_GENERATOR.propagation
+							+ " fills random cells and propagates them along the rows, discarding tables whose rows conflict, as earlier versions did; "
+							+ MODEL_GENERATOR.nullSpace
+							+ " draws every table directly from the space of tables whose rows satisfy the constraints, so no try is wasted. Default: "
+							+ SnpGenDocument.kDefaultModelGenerator, MODEL_GENERATOR.class));
+			final Option<Boolean> seedReplayPopulationOption = parser
+					.addBooleanOption(
+							"seedReplayPopulation",
+							"Keep only the scores and random seed of each model in the population that quantiles are selected from, and regenerate the selected models from their seeds, so that the memory used does not grow with the size of the models. Each try gets its own seed as with --modelThreadCount, which defaults to 1 with this option.");
+			final Option<Double> quantileTargetToleranceOption = parser
+					.addDoubleOption(
+							"quantileTargetTolerance",
+							"If specified, each selected quantile model is refined, keeping its heritability, prevalence and row sums, until its EDM (or odds ratio) is within this fraction of the population's score range of the quantile's evenly spaced target. Lets a small population give well-spaced quantiles.");
+			final Option<Double> quantileStopToleranceOption = parser
+					.addDoubleOption(
+							"quantileStopTolerance",
+							"If specified, the search for a model's population stops early, before rasPopulationCount models are found, once each of the quantiles' evenly spaced target EDMs (or odds ratios) has a model within this fraction of the population's score range of it.");
+			final Option<Integer> modelSearchSecondsOption = parser
+					.addIntegerOption(
+							"modelSearchSeconds",
+							"If specified, the search for each model's population stops after about this many seconds, and the quantiles are selected from the models found by then. Since it depends on the machine's speed, a time limit can change the models generated from a given randomSeed.");
+			final Option<Boolean> failFastModelSearchOption = parser
+					.addBooleanOption(
+							"failFastModelSearch",
+							"Give up on a model as soon as the fraction of tries that have given an acceptable model shows that the remaining tries are not expected to give enough models for the quantiles, instead of using up all rasTryCount tries first.");
+			final Option<Integer> concurrentModelCountOption = parser
+					.addIntegerOption(
+							"concurrentModelCount",
+							"Number of models generated at the same time (the models of a heritability sweep count as one). Each model is generated from its own random number generator, seeded from the randomSeed, so the models do not depend on this. Each model's search uses --modelThreadCount threads. Default: 1");
+			final Option<String> modelCacheDirectoryOption = parser
+					.addStringOption(
+							"modelCacheDirectory",
+							"Directory of a cache of generated models, shared by runs and by processes on this machine. Models generated with a randomSeed and the same parameters as cached ones are read from the cache instead of being generated again.");
+			final Option<Integer> modelCacheMegabytesOption = parser.addIntegerOption("modelCacheMegabytes",
+					"Size limit of the model cache; the least recently used models are deleted beyond it. Default: "
+							+ SnpGenDocument.kDefaultModelCacheMegabytes);
+			final Option<Boolean> savePopulationOption = parser
+					.addBooleanOption(
+							"savePopulation",
+							"Also save each model's whole population of models, from which its quantiles were selected, to a binary file whose name ends in '_Population.gmtp', so that quantiles can be selected from it again with --selectFromPopulation. The population is saved as generated, so it is not read from the model cache.");
+			final Option<String> selectFromPopulationOption = parser
+					.addStringOption(
+							"selectFromPopulation",
+							"Path/Name of a population file saved with --savePopulation. rasQuantileCount quantile models are selected from it with the --selectionStrategy, without generating any models, and saved to a model file named after the population file, the strategy and the number of quantiles. May be given more than once.");
+			final Option<SELECTION_STRATEGY> selectionStrategyOption = parser.addOption(new Option.EnumParserOption<SELECTION_STRATEGY>(
+					"selectionStrategy",
+					"How --selectFromPopulation selects its quantile models from the population ranked by EDM (or odds ratio): "
+							+ SELECTION_STRATEGY.uniform
+							+ " takes the models whose scores are closest to scores spread evenly from the lowest to the highest, as generating models does; "
+							+ SELECTION_STRATEGY.rank
+							+ " takes the middle model of each of rasQuantileCount equal-sized groups of the ranked models, so the selected models follow the population's distribution of scores. Default: "
+							+ SnpGenDocument.kDefaultSelectionStrategy, SELECTION_STRATEGY.class));
+			final Option<Integer> modelCheckpointSecondsOption = parser
+					.addIntegerOption(
+							"modelCheckpointSeconds",
+							"If specified, the state of each model's search is saved about this often, and when the search stops, to a file whose name ends in '_Checkpoint.gmtk'. A run with the same parameters resumes the search from it instead of starting over, and a run with a larger rasTryCount extends the finished search with more tries; either way the models are the ones a single uninterrupted run would have generated. Each try gets its own seed as with --modelThreadCount, which defaults to 1 with this option.");
+			final Option<Integer> datasetThreadCountOption = parser
+					.addIntegerOption(
+							"datasetThreadCount",
+							"Number of threads used to generate the replicate datasets. If specified, each replicate gets its own random seed derived from the randomSeed and the replicate's dataset, quantile and number, so the datasets do not depend on the number of threads. If not specified, the replicates are generated one after another on a single random number generator, as in earlier versions.");
+			final Option<NOISE_KERNEL> noiseKernelOption = parser.addOption(new Option.EnumParserOption<NOISE_KERNEL>(
+					"noiseKernel",
+					"How the noise attributes of the datasets are generated: "
+							+ NOISE_KERNEL.perGenotype
+							+ " draws each genotype from its own random number, as earlier versions did; "
+							+ NOISE_KERNEL.rowThresholds
+							+ " generates each instance's noise attributes together, two genotypes from each 64-bit random number compared with integer thresholds; "
+							+ NOISE_KERNEL.bitSliced
+							+ " generates each noise attribute for 64 instances at once, comparing 64-bit random numbers bit by bit with the attribute's thresholds, which is fastest for datasets with many noise attributes. The other kernels draw the noise from the randomSeed differently than "
+							+ NOISE_KERNEL.perGenotype + ", so their datasets differ from those of earlier versions. Default: "
+							+ SnpGenDocument.kDefaultNoiseKernel, NOISE_KERNEL.class));
+			final Option<RANDOM_ENGINE> randomEngineOption = parser.addOption(new Option.EnumParserOption<RANDOM_ENGINE>(
+					"randomEngine",
+					"The random number generator that models and datasets are generated from: "
+							+ RANDOM_ENGINE.legacy
+							+ " is the sequence of java.util.Random, Java's 48-bit linear congruential generator, which earlier versions used; together with --legacyModelGeneration it reproduces their models for a given randomSeed; "
+							+ RANDOM_ENGINE.splitMix64 + " and " + RANDOM_ENGINE.xoshiro256StarStar
+							+ " are faster 64-bit generators with better statistics, for very large datasets. Default: "
+							+ SnpGenDocument.kDefaultRandomEngine, RANDOM_ENGINE.class));
 			final Option<Boolean> helpOption = parser.addBooleanOption('h', "help", "What you are reading now");
 
 			parser.parse(args);
@@ -407,6 +540,68 @@ public class SnpGenDocument {
 			rasPopulationCount.setValue(parser.getOptionValue(rasPopulationCountOption), SnpGenDocument.kDefaultRasPopulationCount);
 			rasTryCount.setValue(parser.getOptionValue(rasTryCountOption), SnpGenDocument.kDefaultRasTryCount);
 			randomSeed = parser.getOptionValue(randomSeedOption);
+			modelThreadCount = parser.getOptionValue(modelThreadCountOption);
+			if ((modelThreadCount != null) && (modelThreadCount < 1)) {
+				throw new IllegalArgumentException("--" + modelThreadCountOption.longForm + " must be at least 1 but is: " + modelThreadCount);
+			}
+			final Boolean legacyModelGenerationObject = parser.getOptionValue(legacyModelGenerationOption);
+			legacyModelGeneration = ((legacyModelGenerationObject != null) && legacyModelGenerationObject);
+			final MODEL_GENERATOR modelGeneratorObject = parser.getOptionValue(modelGeneratorOption);
+			modelGenerator = (modelGeneratorObject == null) ? SnpGenDocument.kDefaultModelGenerator : modelGeneratorObject;
+			final Boolean seedReplayPopulationObject = parser.getOptionValue(seedReplayPopulationOption);
+			seedReplayPopulation = ((seedReplayPopulationObject != null) && seedReplayPopulationObject);
+			quantileTargetTolerance = parser.getOptionValue(quantileTargetToleranceOption);
+			if ((quantileTargetTolerance != null) && !(quantileTargetTolerance > 0)) {
+				throw new IllegalArgumentException("--" + quantileTargetToleranceOption.longForm + " must be greater than 0 but is: "
+						+ quantileTargetTolerance);
+			}
+			quantileStopTolerance = parser.getOptionValue(quantileStopToleranceOption);
+			if ((quantileStopTolerance != null) && !(quantileStopTolerance > 0)) {
+				throw new IllegalArgumentException("--" + quantileStopToleranceOption.longForm + " must be greater than 0 but is: "
+						+ quantileStopTolerance);
+			}
+			modelSearchSeconds = parser.getOptionValue(modelSearchSecondsOption);
+			if ((modelSearchSeconds != null) && (modelSearchSeconds < 1)) {
+				throw new IllegalArgumentException("--" + modelSearchSecondsOption.longForm + " must be at least 1 but is: " + modelSearchSeconds);
+			}
+			final Boolean failFastModelSearchObject = parser.getOptionValue(failFastModelSearchOption);
+			failFastModelSearch = ((failFastModelSearchObject != null) && failFastModelSearchObject);
+			final Integer concurrentModelCountObject = parser.getOptionValue(concurrentModelCountOption);
+			if ((concurrentModelCountObject != null) && (concurrentModelCountObject < 1)) {
+				throw new IllegalArgumentException("--" + concurrentModelCountOption.longForm + " must be at least 1 but is: "
+						+ concurrentModelCountObject);
+			}
+			concurrentModelCount = (concurrentModelCountObject == null) ? 1 : concurrentModelCountObject;
+			fileName = parser.getOptionValue(modelCacheDirectoryOption);
+			modelCacheDirectory = (fileName == null) ? null : new File(fileName);
+			final Integer modelCacheMegabytesObject = parser.getOptionValue(modelCacheMegabytesOption);
+			if ((modelCacheMegabytesObject != null) && (modelCacheMegabytesObject < 1)) {
+				throw new IllegalArgumentException("--" + modelCacheMegabytesOption.longForm + " must be at least 1 but is: "
+						+ modelCacheMegabytesObject);
+			}
+			modelCacheMegabytes = (modelCacheMegabytesObject == null) ? SnpGenDocument.kDefaultModelCacheMegabytes : modelCacheMegabytesObject;
+			final Boolean savePopulationObject = parser.getOptionValue(savePopulationOption);
+			savePopulation = ((savePopulationObject != null) && savePopulationObject);
+			final Vector<String> populationInputFileOptionList = parser.getOptionValues(selectFromPopulationOption);
+			populationInputFiles = new File[populationInputFileOptionList.size()];
+			for (int i = 0; i < populationInputFiles.length; ++i) {
+				populationInputFiles[i] = new File(populationInputFileOptionList.get(i));
+			}
+			final SELECTION_STRATEGY selectionStrategyObject = parser.getOptionValue(selectionStrategyOption);
+			selectionStrategy = (selectionStrategyObject == null) ? SnpGenDocument.kDefaultSelectionStrategy : selectionStrategyObject;
+			datasetThreadCount = parser.getOptionValue(datasetThreadCountOption);
+			if ((datasetThreadCount != null) && (datasetThreadCount < 1)) {
+				throw new IllegalArgumentException("--" + datasetThreadCountOption.longForm + " must be at least 1 but is: " + datasetThreadCount);
+			}
+			final NOISE_KERNEL noiseKernelObject = parser.getOptionValue(noiseKernelOption);
+			noiseKernel = (noiseKernelObject == null) ? SnpGenDocument.kDefaultNoiseKernel : noiseKernelObject;
+			final RANDOM_ENGINE randomEngineObject = parser.getOptionValue(randomEngineOption);
+			randomEngine = (randomEngineObject == null) ? SnpGenDocument.kDefaultRandomEngine : randomEngineObject;
+			modelCheckpointSeconds = parser.getOptionValue(modelCheckpointSecondsOption);
+			if ((modelCheckpointSeconds != null) && (modelCheckpointSeconds < 1)) {
+				throw new IllegalArgumentException("--" + modelCheckpointSecondsOption.longForm + " must be at least 1 but is: "
+						+ modelCheckpointSeconds);
+			}
 
 			final Vector<CmdLineParserSrc> datasetOptionList = parser.getOptionValues(datasetOption);
 			for (final CmdLineParserSrc datasetParser : datasetOptionList) {
@@ -489,28 +684,51 @@ public class SnpGenDocument {
 					modelName = modelFile.getName();
 				}
 
-				final DocModel model = addNewDocModel(attributeAlleleFrequencyList.size(), modelName, null, null);
-				model.file = modelFile;
-				for (int i = 0; i < attributeAlleleFrequencyList.size(); ++i) {
-					model.attributeAlleleFrequencyArray[i].setValue(attributeAlleleFrequencyList.elementAt(i).doubleValue());
-				}
-				final Double heritability = modelParser.getOptionValue(modelHeritabilityOption);
-				if (heritability == null) {
+				final Vector<Double> heritabilities = modelParser.getOptionValues(modelHeritabilityOption);
+				if (heritabilities.isEmpty()) {
 					throw new MissingOptionException(modelHeritabilityOption.toString());
-				} else {
-					model.heritability.setValue(heritability.doubleValue());
 				}
-				final Double prevalence = modelParser.getOptionValue(modelPrevalenceOption);
-				if (prevalence == null) {
-					model.prevalence.setValue((Double) null);
-				} else {
-					model.prevalence.setValue(prevalence.doubleValue());
+				final boolean isHeritabilitySweep = (heritabilities.size() > 1);
+				if (isHeritabilitySweep && (datasetOptionList.size() > 0)) {
+					throw new IllegalArgumentException("A --model with more than one --" + modelHeritabilityOption.longForm
+							+ " writes one model file per heritability and cannot be combined with --" + datasetOption.longForm
+							+ "; generate the datasets from the model files with --" + modelInputFileOption.longForm);
 				}
-				final Boolean useOddsRatio = modelParser.getOptionValue(modelOddsRatioOption);
-				if (useOddsRatio == null) {
-					model.useOddsRatio.setValue((Boolean) null);
-				} else {
-					model.useOddsRatio.setValue(useOddsRatio.booleanValue());
+				DocModel heritabilitySweepFirstModel = null;
+				for (final Double heritability : heritabilities) {
+					String sweepModelName = modelName;
+					File sweepModelFile = modelFile;
+					if (isHeritabilitySweep) {
+						// Each heritability gets its own model name and files:
+						sweepModelName = modelName + SnpGenDocument.kHeritabilitySweepSuffix + heritability;
+						if (modelFile != null) {
+							sweepModelFile = new File(modelFilePrefix + SnpGenDocument.kHeritabilitySweepSuffix + heritability);
+						}
+					}
+					final DocModel model = addNewDocModel(attributeAlleleFrequencyList.size(), sweepModelName, null, null);
+					model.file = sweepModelFile;
+					if (isHeritabilitySweep) {
+						if (heritabilitySweepFirstModel == null) {
+							heritabilitySweepFirstModel = model;
+						}
+						model.heritabilitySweepFirstModel = heritabilitySweepFirstModel;
+					}
+					for (int i = 0; i < attributeAlleleFrequencyList.size(); ++i) {
+						model.attributeAlleleFrequencyArray[i].setValue(attributeAlleleFrequencyList.elementAt(i).doubleValue());
+					}
+					model.heritability.setValue(heritability.doubleValue());
+					final Double prevalence = modelParser.getOptionValue(modelPrevalenceOption);
+					if (prevalence == null) {
+						model.prevalence.setValue((Double) null);
+					} else {
+						model.prevalence.setValue(prevalence.doubleValue());
+					}
+					final Boolean useOddsRatio = modelParser.getOptionValue(modelOddsRatioOption);
+					if (useOddsRatio == null) {
+						model.useOddsRatio.setValue((Boolean) null);
+					} else {
+						model.useOddsRatio.setValue(useOddsRatio.booleanValue());
+					}
 				}
 			}
 
@@ -907,11 +1125,16 @@ public class SnpGenDocument {
 		public DocDouble fraction;
 		public DocBoolean useOddsRatio;
 		public File file;
+		// Set on each model of a heritability sweep (a --model given several heritabilities) to the sweep's first model; such models
+		// are searched together and differ only in heritability, name and file. Null for other models.
+		public DocModel heritabilitySweepFirstModel;
 		public DocString[] attributeNameArray;
 		public DocDouble[] attributeAlleleFrequencyArray;
 		private SnpGenDocument parentDoc;
 		private PenetranceTable[] penetranceTables;
 		private int quantileCountInModel;
+		// How the model's tables were searched for; null if they were not generated
+		private ModelGenerationStatistics generationStatistics;
 
 		public DocModel(final DocModel inDocModel) {
 			this(inDocModel.attributeCount.getInteger());
@@ -950,6 +1173,8 @@ public class SnpGenDocument {
 			ioDocModel.useOddsRatio.setBoolean(useOddsRatio);
 			ioDocModel.setParentDoc(getParentDoc());
 			ioDocModel.file = file;
+			ioDocModel.heritabilitySweepFirstModel = heritabilitySweepFirstModel;
+			ioDocModel.generationStatistics = generationStatistics;
 			for (int i = 0; i < attributeCount; ++i) {
 				ioDocModel.attributeNameArray[i] = new DocString(attributeNameArray[i].getString());
 			}
@@ -983,6 +1208,10 @@ public class SnpGenDocument {
 			return outAttributeNames;
 		}
 
+		public ModelGenerationStatistics getGenerationStatistics() {
+			return generationStatistics;
+		}
+
 		public SnpGenDocument getParentDoc() {
 			return parentDoc;
 		}
@@ -1042,6 +1271,10 @@ public class SnpGenDocument {
 			}
 		}
 
+		public void setGenerationStatistics(final ModelGenerationStatistics generationStatistics) {
+			this.generationStatistics = generationStatistics;
+		}
+
 		public void setParentDoc(final SnpGenDocument parentDoc) {
 			this.parentDoc = parentDoc;
 		}
@@ -1149,4 +1382,20 @@ public class SnpGenDocument {
 		heterogeneous, hierarchical
 	}
 
+	public enum MODEL_GENERATOR {
+		propagation, nullSpace
+	}
+
+	public enum SELECTION_STRATEGY {
+		uniform, rank
+	}
+
+	public enum NOISE_KERNEL {
+		perGenotype, rowThresholds, bitSliced
+	}
+
+	public enum RANDOM_ENGINE {
+		legacy, splitMix64, xoshiro256StarStar
+	}
+
 }
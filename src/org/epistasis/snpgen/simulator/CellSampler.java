@@ -0,0 +1,41 @@
+package org.epistasis.snpgen.simulator;
+
+// Picks a penetrance table cell for a uniform random number, from the cumulative probabilities of the cells: the cell is the first
+// one whose cumulative probability is greater than the number, as a linear scan of them would find. A guide table (Chen and Asau's
+// method) gives, for each of cellCount equal slices of [0, 1), the first cell that a number in the slice can fall in, so a pick
+// starts at the right cell or a few before it and takes O(1) steps on average however many cells there are.
+// Unlike an alias table, a guide table picks exactly the cells that the linear scan did for the same random numbers, so datasets
+// generated from a given random seed do not change.
+public class CellSampler {
+	// The cumulative probability of each cell; the last should be 1
+	private final double[] intervals;
+	private final int[] guide;
+
+	public CellSampler(final double[] inIntervals) {
+		intervals = inIntervals;
+		final int cellCount = inIntervals.length;
+		guide = new int[cellCount];
+		int whichCell = 0;
+		for (int whichSlice = 0; whichSlice < cellCount; ++whichSlice) {
+			final double sliceStart = (double) whichSlice / cellCount;
+			while ((whichCell < (cellCount - 1)) && (inIntervals[whichCell] <= sliceStart)) {
+				++whichCell;
+			}
+			guide[whichSlice] = whichCell;
+		}
+	}
+
+	// Returns the first cell whose cumulative probability is greater than inRand, which must be in [0, 1), or -1 if there is none.
+	public int sample(final double inRand) {
+		final int cellCount = intervals.length;
+		int outWhichCell = guide[Math.min((int) (inRand * cellCount), cellCount - 1)];
+		// (Rounding in inRand * cellCount can put a number near a slice's start in the slice after it)
+		while ((outWhichCell > 0) && (inRand < intervals[outWhichCell - 1])) {
+			--outWhichCell;
+		}
+		while ((outWhichCell < cellCount) && (inRand >= intervals[outWhichCell])) {
+			++outWhichCell;
+		}
+		return (outWhichCell < cellCount) ? outWhichCell : -1;
+	}
+}
@@ -0,0 +1,79 @@
+package org.epistasis.snpgen.simulator;
+
+import java.util.Arrays;
+
+// The probability of each genotype, and of each cell of a penetrance table, for a fixed vector of minor allele frequencies.
+// These depend only on the frequencies, not on the penetrance values, so one instance is computed per model search and shared
+// by every table (and every thread) of that search. Instances are never modified after construction.
+public class GenotypeProbabilities {
+	public final int snpStateCount;
+	public final int attributeCount;
+	public final int cellCount;
+	private final double[] minorAlleleFrequencies;
+	private final double[][] stateProbability;
+	private final double[] cellProbability;
+
+	public GenotypeProbabilities(final int inSnpStateCount, final double[] inMinorAlleleFrequencies) {
+		snpStateCount = inSnpStateCount;
+		attributeCount = inMinorAlleleFrequencies.length;
+		if (attributeCount > PenetranceTable.getMaxAttributeCount(snpStateCount)) {
+			throw new IllegalArgumentException("A penetrance table can have at most " + PenetranceTable.getMaxAttributeCount(snpStateCount)
+					+ " attributes but " + attributeCount + " were requested");
+		}
+		minorAlleleFrequencies = Arrays.copyOf(inMinorAlleleFrequencies, attributeCount);
+
+		stateProbability = new double[attributeCount][snpStateCount];
+		int comb = 1;
+		for (int j = 0; j < snpStateCount; ++j) {
+			for (int i = 0; i < attributeCount; ++i) {
+				stateProbability[i][j] = comb * Math.pow(minorAlleleFrequencies[i], j)
+						* Math.pow(1 - minorAlleleFrequencies[i], snpStateCount - j - 1);
+			}
+			comb *= snpStateCount - 1 - j;
+			comb /= j + 1;
+		}
+
+		int count = 1;
+		for (int i = 0; i < attributeCount; ++i) {
+			count *= snpStateCount;
+		}
+		cellCount = count;
+
+		// Walk the cells in master-index order, keeping the cell's indices in an odometer rather than recomputing them with div/mod;
+		// the product is taken in dimension order, exactly as PenetranceTable.getProbabilityProduct() does.
+		cellProbability = new double[cellCount];
+		final int[] indices = new int[attributeCount];
+		for (int cell = 0; cell < cellCount; ++cell) {
+			double product = 1;
+			for (int dimension = 0; dimension < attributeCount; ++dimension) {
+				product *= stateProbability[dimension][indices[dimension]];
+			}
+			cellProbability[cell] = product;
+			for (int dimension = 0; (dimension < attributeCount) && (++indices[dimension] == snpStateCount); ++dimension) {
+				indices[dimension] = 0;
+			}
+		}
+	}
+
+	// The returned array is shared; callers must not modify it.
+	public double[] getCellProbabilities() {
+		return cellProbability;
+	}
+
+	public double getCellProbability(final int inMasterIndex) {
+		return cellProbability[inMasterIndex];
+	}
+
+	public double[] getMinorAlleleFrequencies() {
+		return Arrays.copyOf(minorAlleleFrequencies, attributeCount);
+	}
+
+	// The returned arrays are shared; callers must not modify them.
+	public double[][] getStateProbabilities() {
+		return stateProbability;
+	}
+
+	public boolean matches(final int inSnpStateCount, final double[] inMinorAlleleFrequencies) {
+		return (snpStateCount == inSnpStateCount) && Arrays.equals(minorAlleleFrequencies, inMinorAlleleFrequencies);
+	}
+}
@@ -0,0 +1,277 @@
+package org.epistasis.snpgen.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
+
+// An on-disk cache of generated model groups (see SnpGenSimulator.generateTablesForModels()), shared by runs and by processes on one
+// machine. An entry holds each model's selected quantile tables and population scores, and is named by the SHA-256 of a description
+// of everything that determines them, so equal parameters (and random seed) find the same entry.
+// Entries are written to a temporary file and renamed into place, so a reader never sees a partial entry. A missing entry is
+// computed by only one caller at a time: callers in this process wait on a lock per entry, and callers in other processes on a
+// FileChannel lock of the entry's lock file, and then find the entry that the first caller stored. When the entries take more than
+// the cache's size limit, the least recently used are deleted; using an entry updates its modification time. The lock files are
+// empty; an evicted entry's lock file is deleted with it if no one holds or waits for its lock. (A process that has opened the lock
+// file but not yet locked it may still lock the deleted file, which at worst computes the entry twice; entries are stored whole.)
+public class ModelCache {
+	private static final String kEntryExtension = ".gmc";
+	private static final String kLockExtension = ".lock";
+	// "GMTC", and the entry format version
+	private static final int kMagic = 0x474D5443;
+	private static final int kVersion = 2;
+	// The locks of the entries being looked up in this process, by entry file; an entry's lock is dropped when no one uses it
+	private static final Map<File, EntryLock> entryLocks = new HashMap<File, EntryLock>();
+
+	public final File directory;
+	public final long maxByteCount;
+
+	public ModelCache(final File inDirectory, final long inMaxByteCount) {
+		directory = inDirectory;
+		maxByteCount = inMaxByteCount;
+	}
+
+	// Returns the entry for inDescription, computing it with inComputer, and storing it, if it is not in the cache. outWasCached[0]
+	// tells which.
+	public Entry getOrCompute(final String inDescription, final Callable<Entry> inComputer, final boolean[] outWasCached) throws Exception {
+		if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+			throw new IOException("Unable to create the model cache directory " + directory);
+		}
+		final String key = ModelCache.calcKey(inDescription);
+		final File entryFile = new File(directory, key + ModelCache.kEntryExtension).getAbsoluteFile();
+		final EntryLock entryLock = ModelCache.lockEntry(entryFile);
+		try (RandomAccessFile lockFile = new RandomAccessFile(new File(directory, key + ModelCache.kLockExtension), "rw");
+				FileChannel lockChannel = lockFile.getChannel();) {
+			final FileLock lock = lockChannel.lock();
+			try {
+				Entry outEntry = readEntry(entryFile, inDescription);
+				outWasCached[0] = outEntry != null;
+				if (outEntry == null) {
+					outEntry = inComputer.call();
+					writeEntry(entryFile, inDescription, outEntry);
+					evict(entryFile);
+				}
+				return outEntry;
+			} finally {
+				lock.release();
+			}
+		} finally {
+			ModelCache.unlockEntry(entryFile, entryLock);
+		}
+	}
+
+	// Delete the least recently used entries, other than inKeptFile, until the entries fit in maxByteCount, and their lock files.
+	private void evict(final File inKeptFile) {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		final List<File> entryFiles = new ArrayList<File>();
+		long byteCount = 0;
+		for (final File file : files) {
+			if (file.getName().endsWith(ModelCache.kEntryExtension)) {
+				entryFiles.add(file);
+				byteCount += file.length();
+			}
+		}
+		if (byteCount <= maxByteCount) {
+			return;
+		}
+		// Take each file's time once, since another process may touch the files while they are sorted:
+		final Map<File, Long> lastModifieds = new HashMap<File, Long>();
+		for (final File file : entryFiles) {
+			lastModifieds.put(file, file.lastModified());
+		}
+		Collections.sort(entryFiles, new Comparator<File>() {
+			@Override
+			public int compare(final File in1, final File in2) {
+				return lastModifieds.get(in1).compareTo(lastModifieds.get(in2));
+			}
+		});
+		for (final File file : entryFiles) {
+			if (byteCount <= maxByteCount) {
+				break;
+			}
+			if (!file.getAbsoluteFile().equals(inKeptFile)) {
+				final long length = file.length();
+				// (Another process may have deleted it already)
+				if (file.delete() || !file.exists()) {
+					byteCount -= length;
+					deleteLockFile(file);
+				}
+			}
+		}
+	}
+
+	// Delete the lock file of the entry stored in inEntryFile, unless its lock is held or waited for in this process, or held by another
+	// process.
+	private void deleteLockFile(final File inEntryFile) {
+		final String entryName = inEntryFile.getName();
+		final File lockFile = new File(directory, entryName.substring(0, entryName.length() - ModelCache.kEntryExtension.length())
+				+ ModelCache.kLockExtension);
+		// (Holding the monitor of addEntryLockUser() keeps the threads of this process from locking the file until it is deleted)
+		synchronized (ModelCache.class) {
+			if (ModelCache.isEntryLocked(inEntryFile.getAbsoluteFile()) || !lockFile.isFile()) {
+				return;
+			}
+			try (RandomAccessFile stream = new RandomAccessFile(lockFile, "rw"); FileChannel channel = stream.getChannel();) {
+				final FileLock lock = channel.tryLock();
+				if (lock != null) {
+					try {
+						lockFile.delete();
+					} finally {
+						lock.release();
+					}
+				}
+			} catch (final IOException | OverlappingFileLockException ex) {
+				// The lock file is left for later
+			}
+		}
+	}
+
+	// Returns the entry stored in inFile, or null if there is none or it is not a valid entry for inDescription.
+	private Entry readEntry(final File inFile, final String inDescription) {
+		if (!inFile.isFile()) {
+			return null;
+		}
+		try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(inFile)));) {
+			if ((stream.readInt() != ModelCache.kMagic) || (stream.readInt() != ModelCache.kVersion)
+					|| !stream.readUTF().equals(inDescription)) {
+				return null;
+			}
+			final int modelCount = stream.readInt();
+			final PenetranceTable[][] tables = new PenetranceTable[modelCount][];
+			final double[][] scores = new double[modelCount][];
+			for (int whichModel = 0; whichModel < modelCount; ++whichModel) {
+				scores[whichModel] = new double[stream.readInt()];
+				for (int i = 0; i < scores[whichModel].length; ++i) {
+					scores[whichModel][i] = stream.readDouble();
+				}
+				tables[whichModel] = new PenetranceTable[stream.readInt()];
+				for (int i = 0; i < tables[whichModel].length; ++i) {
+					tables[whichModel][i] = PenetranceTable.readBinary(stream);
+				}
+			}
+			inFile.setLastModified(System.currentTimeMillis());
+			return new Entry(tables, scores);
+		} catch (final IOException ex) {
+			System.out.println("Ignoring unreadable model cache entry " + inFile + ": " + ex.getMessage());
+			return null;
+		}
+	}
+
+	private void writeEntry(final File inFile, final String inDescription, final Entry inEntry) throws IOException {
+		final File tempFile = File.createTempFile(inFile.getName(), ".tmp", directory);
+		try {
+			try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));) {
+				stream.writeInt(ModelCache.kMagic);
+				stream.writeInt(ModelCache.kVersion);
+				stream.writeUTF(inDescription);
+				stream.writeInt(inEntry.tables.length);
+				for (int whichModel = 0; whichModel < inEntry.tables.length; ++whichModel) {
+					stream.writeInt(inEntry.scores[whichModel].length);
+					for (final double score : inEntry.scores[whichModel]) {
+						stream.writeDouble(score);
+					}
+					stream.writeInt(inEntry.tables[whichModel].length);
+					for (final PenetranceTable table : inEntry.tables[whichModel]) {
+						table.writeBinary(stream);
+					}
+				}
+			}
+			// The rename replaces any entry that could not be read:
+			if (!tempFile.renameTo(inFile) && !(inFile.delete() && tempFile.renameTo(inFile))) {
+				throw new IOException("Unable to store the model cache entry " + inFile);
+			}
+		} finally {
+			if (tempFile.exists()) {
+				tempFile.delete();
+			}
+		}
+	}
+
+	// Returns the SHA-256 of inDescription, in hexadecimal.
+	public static String calcKey(final String inDescription) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-256").digest(inDescription.getBytes(StandardCharsets.UTF_8));
+			final StringBuilder outKey = new StringBuilder();
+			for (final byte b : digest) {
+				outKey.append(String.format("%02x", b & 0xFF));
+			}
+			return outKey.toString();
+		} catch (final NoSuchAlgorithmException ex) {
+			// Every Java platform has SHA-256:
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	// Returns the lock of inEntryFile, adding a user to it.
+	private static synchronized EntryLock addEntryLockUser(final File inEntryFile) {
+		EntryLock outLock = ModelCache.entryLocks.get(inEntryFile);
+		if (outLock == null) {
+			outLock = new EntryLock();
+			ModelCache.entryLocks.put(inEntryFile, outLock);
+		}
+		++outLock.userCount;
+		return outLock;
+	}
+
+	private static synchronized boolean isEntryLocked(final File inEntryFile) {
+		return ModelCache.entryLocks.containsKey(inEntryFile);
+	}
+
+	// Lock inEntryFile against the other threads of this process, and return its lock for unlockEntry().
+	private static EntryLock lockEntry(final File inEntryFile) {
+		final EntryLock outLock = ModelCache.addEntryLockUser(inEntryFile);
+		outLock.lock.lock();
+		return outLock;
+	}
+
+	// Remove a user of inEntryFile's lock, dropping the lock if it was the last.
+	private static synchronized void removeEntryLockUser(final File inEntryFile, final EntryLock inLock) {
+		if (--inLock.userCount == 0) {
+			ModelCache.entryLocks.remove(inEntryFile);
+		}
+	}
+
+	private static void unlockEntry(final File inEntryFile, final EntryLock inLock) {
+		inLock.lock.unlock();
+		ModelCache.removeEntryLockUser(inEntryFile, inLock);
+	}
+
+	// The generated tables of a model group: for each model, its quantile tables and its population scores, sorted
+	public static class Entry {
+		public final PenetranceTable[][] tables;
+		public final double[][] scores;
+
+		public Entry(final PenetranceTable[][] inTables, final double[][] inScores) {
+			tables = inTables;
+			scores = inScores;
+		}
+	}
+
+	// An entry's lock in this process, and the number of threads holding or waiting for it
+	private static class EntryLock {
+		public final ReentrantLock lock = new ReentrantLock();
+		public int userCount;
+	}
+}
@@ -0,0 +1,114 @@
+package org.epistasis.snpgen.simulator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+// What became of the tries of one model's table search, and where its time went, so that rasTryCount can be tuned for a set of
+// parameters. Tries are recorded in try order as the search collects them, and only while the model's population still wants tables,
+// so the counts depend on the random seed but not on the number of threads. The models of a heritability sweep share their tries'
+// random tables, so they report the same generation and scoring times.
+// The report is written as tab-separated name and value lines.
+public class ModelGenerationStatistics {
+	public final String modelId;
+	private final long[] outcomeCounts;
+	private long tryCount;
+	// Time spent in each phase, summed over the search's threads, so with several threads it can exceed searchNanos
+	public long generationNanos;
+	public long scoringNanos;
+	public long normalizationNanos;
+	// Wall-clock time of the search, and of selecting (and regenerating or refining) the quantiles from the population
+	public long searchNanos;
+	public long selectionNanos;
+
+	public ModelGenerationStatistics(final String inModelId) {
+		modelId = inModelId;
+		outcomeCounts = new long[TryOutcome.values().length];
+		tryCount = 0;
+	}
+
+	// Add inOther's counts and phase times to these, as when a search is resumed from a checkpoint.
+	public void add(final ModelGenerationStatistics inOther) {
+		tryCount += inOther.tryCount;
+		for (int i = 0; i < outcomeCounts.length; ++i) {
+			outcomeCounts[i] += inOther.outcomeCounts[i];
+		}
+		generationNanos += inOther.generationNanos;
+		scoringNanos += inOther.scoringNanos;
+		normalizationNanos += inOther.normalizationNanos;
+	}
+
+	public long getCount(final TryOutcome inOutcome) {
+		return outcomeCounts[inOutcome.ordinal()];
+	}
+
+	public long getTryCount() {
+		return tryCount;
+	}
+
+	public void recordTry(final TryOutcome inOutcome) {
+		++tryCount;
+		++outcomeCounts[inOutcome.ordinal()];
+	}
+
+	public void write(final PrintWriter inStream) {
+		inStream.println("modelId\t" + modelId);
+		inStream.println("tries\t" + tryCount);
+		for (final TryOutcome outcome : TryOutcome.values()) {
+			inStream.println(outcome.name() + "\t" + getCount(outcome));
+		}
+		inStream.println("acceptanceRate\t" + ((tryCount == 0) ? 0 : (double) getCount(TryOutcome.accepted) / tryCount));
+		inStream.println("searchSeconds\t" + ModelGenerationStatistics.toSeconds(searchNanos));
+		inStream.println("generationSeconds\t" + ModelGenerationStatistics.toSeconds(generationNanos));
+		inStream.println("scoringSeconds\t" + ModelGenerationStatistics.toSeconds(scoringNanos));
+		inStream.println("normalizationSeconds\t" + ModelGenerationStatistics.toSeconds(normalizationNanos));
+		inStream.println("selectionSeconds\t" + ModelGenerationStatistics.toSeconds(selectionNanos));
+	}
+
+	// Write the counts and the phase times summed over the search's threads, for readBinary().
+	public void writeBinary(final DataOutput outStream) throws IOException {
+		outStream.writeInt(outcomeCounts.length);
+		outStream.writeLong(tryCount);
+		for (final long count : outcomeCounts) {
+			outStream.writeLong(count);
+		}
+		outStream.writeLong(generationNanos);
+		outStream.writeLong(scoringNanos);
+		outStream.writeLong(normalizationNanos);
+	}
+
+	// Read the counts and phase times written by writeBinary(), as the statistics of model inModelId.
+	public static ModelGenerationStatistics readBinary(final DataInput inStream, final String inModelId) throws IOException {
+		final ModelGenerationStatistics outStatistics = new ModelGenerationStatistics(inModelId);
+		final int outcomeCount = inStream.readInt();
+		if (outcomeCount != outStatistics.outcomeCounts.length) {
+			throw new IOException("Expected " + outStatistics.outcomeCounts.length + " try outcome counts but found " + outcomeCount);
+		}
+		outStatistics.tryCount = inStream.readLong();
+		for (int i = 0; i < outcomeCount; ++i) {
+			outStatistics.outcomeCounts[i] = inStream.readLong();
+		}
+		outStatistics.generationNanos = inStream.readLong();
+		outStatistics.scoringNanos = inStream.readLong();
+		outStatistics.normalizationNanos = inStream.readLong();
+		return outStatistics;
+	}
+
+	private static double toSeconds(final long inNanos) {
+		return inNanos / 1e9;
+	}
+
+	public enum TryOutcome {
+		// The table was normalized to the model's heritability and added to its population
+		accepted,
+		// The random table could not be generated: a cell's value was ambiguous, or conflicted with its row (see PenetranceTable.ErrorState)
+		ambiguous,
+		conflict,
+		// The random table's heritability is below the model's, and normalization can only scale it down (or, with a heritability
+		// tolerance, too far from the model's)
+		heritabilityUnreachable,
+		// The normalized table failed the row-sum test
+		rowSumsInvalid
+	}
+}
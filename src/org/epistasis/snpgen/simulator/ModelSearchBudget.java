@@ -0,0 +1,78 @@
+package org.epistasis.snpgen.simulator;
+
+import org.epistasis.snpgen.exception.ProcessingException;
+
+// The rules that end a model search before its populations are full or its tries are used up:
+// - A population is done once each of the quantile targets (see SnpGenSimulator.calcQuantileTargets()) has a table whose score is
+// within quantileStopTolerance, as a fraction of the population's score range, of it; a larger population would not give better
+// quantiles.
+// - The search stops at its wall-clock deadline, keeping the tables found so far.
+// - If failFast, the search gives up as soon as the acceptance rate so far shows that some population cannot reach quantileCount
+// tables in the remaining tries, rather than using them all up before failing.
+// Except for the deadline, the rules are applied after each try, in try order, so they do not change the search's reproducibility.
+public class ModelSearchBudget {
+	// Tries before the acceptance rate is trusted enough to fail on
+	private static final int kMinFailFastTryCount = 1000;
+	// Number of standard deviations added to the observed acceptance count, so that an unlucky start is not taken for an unreachable
+	// target
+	private static final double kFailFastMargin = 3;
+
+	public final int quantileCount;
+	public final Double quantileStopTolerance;
+	public final boolean useOddsRatio;
+	public final boolean failFast;
+	private final boolean hasDeadline;
+	private final long deadlineNanos;
+
+	public ModelSearchBudget(final int inQuantileCount, final Double inQuantileStopTolerance, final boolean inUseOddsRatio,
+			final Integer inSearchSeconds, final boolean inFailFast) {
+		quantileCount = inQuantileCount;
+		quantileStopTolerance = inQuantileStopTolerance;
+		useOddsRatio = inUseOddsRatio;
+		failFast = inFailFast;
+		hasDeadline = inSearchSeconds != null;
+		deadlineNanos = hasDeadline ? System.nanoTime() + (inSearchSeconds * 1000000000L) : 0;
+	}
+
+	// Throws if failFast and some population that is not done is not expected to reach quantileCount tables, even at a generous
+	// estimate of its acceptance rate, in the tries after the first inTriesDone of inTryCount.
+	public void checkAcceptanceRate(final PenetranceTablePopulation[] inPopulations, final int inDesiredTableCount, final int inTriesDone,
+			final int inTryCount) throws ProcessingException {
+		if (!failFast || (inTriesDone < ModelSearchBudget.kMinFailFastTryCount)) {
+			return;
+		}
+		for (final PenetranceTablePopulation population : inPopulations) {
+			final int acceptedCount = population.size();
+			if ((acceptedCount < quantileCount) && !isDone(population, inDesiredTableCount)) {
+				final double rate = (acceptedCount + (ModelSearchBudget.kFailFastMargin * Math.sqrt(acceptedCount)) + ModelSearchBudget.kFailFastMargin)
+						/ inTriesDone;
+				final double expectedCount = acceptedCount + (rate * ((long) inTryCount - inTriesDone));
+				if (expectedCount < quantileCount) {
+					throw new ProcessingException("Unable to generate desired number of table quantiles: only " + acceptedCount + " of "
+							+ inTriesDone + " tries gave an acceptable model, so the remaining " + (inTryCount - inTriesDone)
+							+ " tries are not expected to reach " + quantileCount + ". Try a lower heritability or more tries.");
+				}
+			}
+		}
+	}
+
+	// Returns the number of populations that are done; see isDone().
+	public int countDone(final PenetranceTablePopulation[] inPopulations, final int inDesiredTableCount) {
+		int outDoneCount = 0;
+		for (final PenetranceTablePopulation population : inPopulations) {
+			if (isDone(population, inDesiredTableCount)) {
+				++outDoneCount;
+			}
+		}
+		return outDoneCount;
+	}
+
+	public boolean isDone(final PenetranceTablePopulation inPopulation, final int inDesiredTableCount) {
+		return (inPopulation.size() >= inDesiredTableCount)
+				|| ((quantileStopTolerance != null) && inPopulation.coversQuantileTargets(quantileCount, quantileStopTolerance, useOddsRatio));
+	}
+
+	public boolean isPastDeadline() {
+		return hasDeadline && ((System.nanoTime() - deadlineNanos) >= 0);
+	}
+}
@@ -0,0 +1,114 @@
+package org.epistasis.snpgen.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// The saved state of a model search whose tries are seeded one by one (see SnpGenSimulator.deriveSeed()): its search seed, the
+// number of tries collected, and each model's population and statistics. Since the tries are collected in order, a search resumed
+// from its checkpoint accepts the same tables as one that was never stopped, and a finished search can be extended with more tries
+// as if it had been asked for them from the start.
+// A checkpoint belongs to a description of the search's parameters other than its try count; a checkpoint of a different search is
+// ignored. It is written to a temporary file and renamed into place, so a job killed while writing leaves the previous checkpoint.
+public class ModelSearchCheckpoint {
+	// "GMTK", and the file format version
+	private static final int kMagic = 0x474D544B;
+	private static final int kVersion = 1;
+
+	public final File file;
+	public final String description;
+	private final long intervalNanos;
+	private long lastSaveNanos;
+	// The state loaded by load()
+	public long searchSeed;
+	public int triesDone;
+	public PenetranceTablePopulation[] populations;
+
+	public ModelSearchCheckpoint(final File inFile, final String inDescription, final int inIntervalSeconds) {
+		file = inFile;
+		description = inDescription;
+		intervalNanos = inIntervalSeconds * 1000000000L;
+		lastSaveNanos = System.nanoTime();
+		populations = null;
+	}
+
+	// Whether the last save was at least the checkpoint interval ago.
+	public boolean isDue() {
+		return (System.nanoTime() - lastSaveNanos) >= intervalNanos;
+	}
+
+	// Load the checkpoint of this search, with inPopulationCount populations, if there is one and it has done no more than
+	// inTryCount tries, and add its statistics to ioStatistics. Returns whether it was loaded.
+	public boolean load(final int inPopulationCount, final int inTryCount, final ModelGenerationStatistics[] ioStatistics) {
+		if (!file.isFile()) {
+			return false;
+		}
+		try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));) {
+			if ((stream.readInt() != ModelSearchCheckpoint.kMagic) || (stream.readInt() != ModelSearchCheckpoint.kVersion)
+					|| !stream.readUTF().equals(description)) {
+				System.out.println("Ignoring the checkpoint " + file + ", which is not of this model search.");
+				return false;
+			}
+			final long loadedSearchSeed = stream.readLong();
+			final int loadedTriesDone = stream.readInt();
+			if (loadedTriesDone > inTryCount) {
+				System.out.println("Ignoring the checkpoint " + file + ", which has done " + loadedTriesDone + " tries, more than the "
+						+ inTryCount + " asked for.");
+				return false;
+			}
+			if (stream.readInt() != inPopulationCount) {
+				throw new IOException("Wrong number of populations");
+			}
+			final PenetranceTablePopulation[] loadedPopulations = new PenetranceTablePopulation[inPopulationCount];
+			final ModelGenerationStatistics[] loadedStatistics = new ModelGenerationStatistics[inPopulationCount];
+			for (int i = 0; i < inPopulationCount; ++i) {
+				loadedPopulations[i] = PenetranceTablePopulation.readBinary(stream);
+				loadedStatistics[i] = ModelGenerationStatistics.readBinary(stream, ioStatistics[i].modelId);
+			}
+			for (int i = 0; i < inPopulationCount; ++i) {
+				ioStatistics[i].add(loadedStatistics[i]);
+			}
+			searchSeed = loadedSearchSeed;
+			triesDone = loadedTriesDone;
+			populations = loadedPopulations;
+			return true;
+		} catch (final IOException ex) {
+			System.out.println("Ignoring unreadable checkpoint " + file + ": " + ex.getMessage());
+			return false;
+		}
+	}
+
+	// Save the state of the search after its first inTriesDone tries; inPopulations must still be in the order their tables were added.
+	public void save(final long inSearchSeed, final int inTriesDone, final PenetranceTablePopulation[] inPopulations,
+			final ModelGenerationStatistics[] inStatistics) throws IOException {
+		final File directory = file.getAbsoluteFile().getParentFile();
+		final File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));) {
+				stream.writeInt(ModelSearchCheckpoint.kMagic);
+				stream.writeInt(ModelSearchCheckpoint.kVersion);
+				stream.writeUTF(description);
+				stream.writeLong(inSearchSeed);
+				stream.writeInt(inTriesDone);
+				stream.writeInt(inPopulations.length);
+				for (int i = 0; i < inPopulations.length; ++i) {
+					inPopulations[i].writeBinary(stream);
+					inStatistics[i].writeBinary(stream);
+				}
+			}
+			if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+				throw new IOException("Unable to save the model search checkpoint " + file);
+			}
+		} finally {
+			if (tempFile.exists()) {
+				tempFile.delete();
+			}
+		}
+		lastSaveNanos = System.nanoTime();
+	}
+}
@@ -0,0 +1,137 @@
+package org.epistasis.snpgen.simulator;
+
+import java.io.PrintWriter;
+
+// Generates the noise attributes of a dataset's instances a whole row at a time. Each attribute's genotype frequencies are turned
+// into two 32-bit integer thresholds, kept in one flat array: a uniform 32-bit draw below an attribute's first threshold is
+// major-major, below its second major-minor, and otherwise minor-minor. The genotypes are drawn in one of two ways:
+// - By row, each 64-bit random number gives the genotypes of two attributes of an instance. This takes half the random bits that a
+// nextDouble() per genotype does, and no floating-point comparisons or branches.
+// - Bit-sliced, an attribute's genotypes for a block of 64 instances are drawn at once, as two bit-planes (see fillBlock()), and the
+// rows are then read out of the block one at a time. Since a draw is compared with a threshold only until its first differing bit,
+// this takes about 8 random numbers per attribute for 64 instances, rather than 32.
+// Either way, the genotypes come from a different sequence of random numbers than noise generated one genotype at a time, so a given
+// random seed gives different noise with the kernel.
+public class NoiseGenotypeKernel {
+	// 2^32, the number of values of a threshold's 32-bit draw
+	private static final double kThresholdScale = 4294967296.0;
+	private static final int kThresholdBitCount = 32;
+	// The number of instances in a bit-sliced block, one per bit of a long
+	private static final int kBlockSize = 64;
+
+	public final int attributeCount;
+	public final boolean bitSliced;
+	// [2 * attribute + 0 or 1]
+	private final long[] thresholds;
+	private final byte[] genotypes;
+	// A row of genotypes as text, each followed by a tab
+	private final char[] rowText;
+	// The bit-sliced block, [attribute]: bit i is set if the block's i'th instance is major-minor (low) or minor-minor (high)
+	private final long[] lowPlanes;
+	private final long[] highPlanes;
+	// The block's next instance; kBlockSize when the block is used up
+	private int whichBlockRow;
+
+	// inAlleleFrequencies[attribute] has the attribute's major-major, major-minor and minor-minor frequencies.
+	public NoiseGenotypeKernel(final double[][] inAlleleFrequencies, final boolean inBitSliced) {
+		attributeCount = inAlleleFrequencies.length;
+		bitSliced = inBitSliced;
+		thresholds = new long[2 * attributeCount];
+		for (int j = 0; j < attributeCount; ++j) {
+			final double[] frequencies = inAlleleFrequencies[j];
+			thresholds[2 * j] = Math.round(frequencies[0] * NoiseGenotypeKernel.kThresholdScale);
+			thresholds[(2 * j) + 1] = Math.round((frequencies[0] + frequencies[1]) * NoiseGenotypeKernel.kThresholdScale);
+			if (bitSliced) {
+				// A bit-sliced threshold must fit in 32 bits; rounding up from 2^32 - 1 takes 2^-32 from the next genotype's frequency
+				thresholds[2 * j] = Math.min(thresholds[2 * j], 0xFFFFFFFFL);
+				thresholds[(2 * j) + 1] = Math.min(thresholds[(2 * j) + 1], 0xFFFFFFFFL);
+			}
+		}
+		genotypes = new byte[attributeCount];
+		rowText = new char[2 * attributeCount];
+		for (int j = 0; j < attributeCount; ++j) {
+			rowText[(2 * j) + 1] = '\t';
+		}
+		lowPlanes = bitSliced ? new long[attributeCount] : null;
+		highPlanes = bitSliced ? new long[attributeCount] : null;
+		whichBlockRow = NoiseGenotypeKernel.kBlockSize;
+	}
+
+	// Fill outGenotypes with a genotype (0, 1 or 2 minor alleles) for each attribute.
+	public void fillRow(final RandomSource inRandom, final byte[] outGenotypes) {
+		if (bitSliced) {
+			if (whichBlockRow == NoiseGenotypeKernel.kBlockSize) {
+				fillBlock(inRandom);
+				whichBlockRow = 0;
+			}
+			for (int j = 0; j < attributeCount; ++j) {
+				outGenotypes[j] = (byte) (((lowPlanes[j] >>> whichBlockRow) & 1L) | (((highPlanes[j] >>> whichBlockRow) & 1L) << 1));
+			}
+			++whichBlockRow;
+			return;
+		}
+		int j = 0;
+		for (; (j + 1) < attributeCount; j += 2) {
+			final long word = inRandom.nextLong();
+			outGenotypes[j] = calcGenotype(word >>> 32, j);
+			outGenotypes[j + 1] = calcGenotype(word & 0xFFFFFFFFL, j + 1);
+		}
+		if (j < attributeCount) {
+			outGenotypes[j] = calcGenotype(inRandom.nextLong() >>> 32, j);
+		}
+	}
+
+	// Generate a row of genotypes and write them to inOutputStream, each followed by a tab, and to columns inFirstOutputColumn on of
+	// line inWhichOutputLine of inOutputArray; either may be null.
+	public void writeRow(final RandomSource inRandom, final PrintWriter inOutputStream, final int[][] inOutputArray,
+			final int inWhichOutputLine, final int inFirstOutputColumn) {
+		fillRow(inRandom, genotypes);
+		if (inOutputStream != null) {
+			for (int j = 0; j < attributeCount; ++j) {
+				rowText[2 * j] = (char) ('0' + genotypes[j]);
+			}
+			inOutputStream.write(rowText);
+		}
+		if (inOutputArray != null) {
+			final int[] outputLine = inOutputArray[inWhichOutputLine];
+			for (int j = 0; j < attributeCount; ++j) {
+				outputLine[inFirstOutputColumn + j] = genotypes[j];
+			}
+		}
+	}
+
+	// Returns the genotype of attribute inWhichAttribute for the 32-bit draw inDraw. A difference is negative, so its sign bit is
+	// 1, exactly when the draw is below the threshold.
+	private byte calcGenotype(final long inDraw, final int inWhichAttribute) {
+		return (byte) (2 - (int) ((inDraw - thresholds[2 * inWhichAttribute]) >>> 63)
+				- (int) ((inDraw - thresholds[(2 * inWhichAttribute) + 1]) >>> 63));
+	}
+
+	// Draw each attribute's genotypes for the next 64 instances. Bit i of the k'th random number of an attribute is bit k, from the
+	// most significant, of instance i's 32-bit draw, and the draws of all 64 instances are compared with both of the attribute's
+	// thresholds at once: an instance is decided for a threshold at the first bit where its draw and the threshold differ, and is
+	// below the threshold if the threshold's bit is the 1. The random numbers stop when every instance is decided for both thresholds.
+	private void fillBlock(final RandomSource inRandom) {
+		for (int j = 0; j < attributeCount; ++j) {
+			final long threshold0 = thresholds[2 * j];
+			final long threshold1 = thresholds[(2 * j) + 1];
+			long undecided0 = -1L;
+			long undecided1 = -1L;
+			long below0 = 0L;
+			long below1 = 0L;
+			for (int bit = NoiseGenotypeKernel.kThresholdBitCount - 1; (bit >= 0) && ((undecided0 | undecided1) != 0L); --bit) {
+				final long plane = inRandom.nextLong();
+				// All ones where the threshold's bit is 1, else all zeros
+				final long mask0 = -((threshold0 >>> bit) & 1L);
+				final long mask1 = -((threshold1 >>> bit) & 1L);
+				below0 |= undecided0 & ~plane & mask0;
+				below1 |= undecided1 & ~plane & mask1;
+				undecided0 &= ~(plane ^ mask0);
+				undecided1 &= ~(plane ^ mask1);
+			}
+			// (Instances still undecided equal the threshold, so are not below it)
+			lowPlanes[j] = below1 & ~below0;
+			highPlanes[j] = ~below1;
+		}
+	}
+}
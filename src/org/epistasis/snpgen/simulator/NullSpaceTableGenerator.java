@@ -0,0 +1,190 @@
+package org.epistasis.snpgen.simulator;
+
+// Generates penetrance tables directly in the space of tables whose rows all have zero probability-weighted sums, so that, unlike
+// filling random cells and propagating them along the rows, generation never runs into a conflict and no try is wasted.
+// Along one dimension, the vectors of snpStateCount values whose sum weighted by that dimension's state probabilities is zero form a
+// subspace of dimension snpStateCount - 1. A table satisfies every row constraint exactly when it lies in the tensor product of these
+// per-dimension subspaces, and the Kronecker products of orthonormal bases of the subspaces are an orthonormal basis of that space,
+// of size (snpStateCount - 1)^attributeCount: the table's basisSize. A table is generated as the combination of those basis tables
+// whose coefficients are the table's random, unit-norm basis values, applying one dimension's basis at a time so that the basis
+// tables themselves are never formed.
+// The bases depend only on the genotype probabilities, so one instance is built per model search and shared by every table (and every
+// thread) of that search. Instances are never modified after construction.
+public class NullSpaceTableGenerator {
+	public final int snpStateCount;
+	public final int attributeCount;
+	public final int cellCount;
+	public final int basisSize;
+	private final GenotypeProbabilities genotypeProbabilities;
+	// nullSpaceBases[dimension][state][k] is the value at that state of the k'th basis vector of the dimension's subspace
+	private final double[][][] nullSpaceBases;
+
+	public NullSpaceTableGenerator(final GenotypeProbabilities inGenotypeProbabilities) {
+		genotypeProbabilities = inGenotypeProbabilities;
+		snpStateCount = inGenotypeProbabilities.snpStateCount;
+		attributeCount = inGenotypeProbabilities.attributeCount;
+		cellCount = inGenotypeProbabilities.cellCount;
+		int size = 1;
+		for (int i = 0; i < attributeCount; ++i) {
+			size *= snpStateCount - 1;
+		}
+		basisSize = size;
+
+		final double[][] stateProbability = inGenotypeProbabilities.getStateProbabilities();
+		nullSpaceBases = new double[attributeCount][][];
+		for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+			nullSpaceBases[whichDimension] = NullSpaceTableGenerator.createNullSpaceBasis(stateProbability[whichDimension]);
+		}
+	}
+
+	// Write to outValues the table whose coordinates in the null-space basis are the values of inBasis (basisSize of them).
+	// ioScratch must be at least cellCount long; its contents are overwritten.
+	public void generate(final PenetranceTable.BasisCell[] inBasis, final double[] outValues, final double[] ioScratch) {
+		final double[] source = ((attributeCount % 2) == 0) ? outValues : ioScratch;
+		for (int i = 0; i < basisSize; ++i) {
+			source[i] = inBasis[i].value;
+		}
+		expand(source, (source == outValues) ? ioScratch : outValues);
+	}
+
+	// Write to outValues the table whose coordinates in the null-space basis are inCoefficients (basisSize of them).
+	// ioScratch must be at least cellCount long; its contents are overwritten.
+	public void generate(final double[] inCoefficients, final double[] outValues, final double[] ioScratch) {
+		final double[] source = ((attributeCount % 2) == 0) ? outValues : ioScratch;
+		System.arraycopy(inCoefficients, 0, source, 0, basisSize);
+		expand(source, (source == outValues) ? ioScratch : outValues);
+	}
+
+	public boolean matches(final GenotypeProbabilities inGenotypeProbabilities) {
+		return genotypeProbabilities == inGenotypeProbabilities;
+	}
+
+	// Write to outCoefficients the coordinates in the null-space basis of the table inValues, which must have zero weighted row sums.
+	// This is the transpose of generate(): since the basis is orthonormal, the coordinates are the inner products of the table with
+	// the basis tables, and they are taken one dimension at a time. ioScratch1 and ioScratch2 must each be at least cellCount long.
+	public void project(final double[] inValues, final double[] outCoefficients, final double[] ioScratch1, final double[] ioScratch2) {
+		final int reducedStateCount = snpStateCount - 1;
+		// Before the step for a dimension, the dimensions below it are in null-space coordinates and the others still have
+		// snpStateCount states:
+		double[] source = inValues;
+		double[] dest = ioScratch1;
+		int innerCount = 1;
+		int outerCount = cellCount / snpStateCount;
+		for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+			final double[][] nullSpaceBasis = nullSpaceBases[whichDimension];
+			for (int outer = 0; outer < outerCount; ++outer) {
+				final int sourceOffset = outer * snpStateCount * innerCount;
+				final int destOffset = outer * reducedStateCount * innerCount;
+				for (int k = 0; k < reducedStateCount; ++k) {
+					final int destStart = destOffset + (k * innerCount);
+					for (int inner = 0; inner < innerCount; ++inner) {
+						double value = 0;
+						for (int state = 0; state < snpStateCount; ++state) {
+							value += nullSpaceBasis[state][k] * source[sourceOffset + (state * innerCount) + inner];
+						}
+						dest[destStart + inner] = value;
+					}
+				}
+			}
+			innerCount *= reducedStateCount;
+			outerCount /= snpStateCount;
+			source = dest;
+			dest = (dest == ioScratch1) ? ioScratch2 : ioScratch1;
+		}
+		System.arraycopy(source, 0, outCoefficients, 0, basisSize);
+	}
+
+	// Expand the coordinates in the first basisSize entries of ioSource into a table, using ioOther as the other buffer; the
+	// buffers alternate between the dimensions, so the table ends up in ioSource if attributeCount is even and in ioOther if it is odd.
+	private void expand(final double[] ioSource, final double[] ioOther) {
+		final int reducedStateCount = snpStateCount - 1;
+		// Before the step for a dimension, the dimensions below it have been expanded to snpStateCount states and the others are still
+		// in null-space coordinates:
+		double[] source = ioSource;
+		double[] dest = ioOther;
+		int innerCount = 1;
+		int outerCount = basisSize / reducedStateCount;
+		for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+			final double[][] nullSpaceBasis = nullSpaceBases[whichDimension];
+			for (int outer = 0; outer < outerCount; ++outer) {
+				final int sourceOffset = outer * reducedStateCount * innerCount;
+				final int destOffset = outer * snpStateCount * innerCount;
+				for (int state = 0; state < snpStateCount; ++state) {
+					final double[] stateBasis = nullSpaceBasis[state];
+					final int destStart = destOffset + (state * innerCount);
+					for (int inner = 0; inner < innerCount; ++inner) {
+						double value = 0;
+						for (int k = 0; k < reducedStateCount; ++k) {
+							value += stateBasis[k] * source[sourceOffset + (k * innerCount) + inner];
+						}
+						dest[destStart + inner] = value;
+					}
+				}
+			}
+			innerCount *= snpStateCount;
+			outerCount /= reducedStateCount;
+			final double[] swap = source;
+			source = dest;
+			dest = swap;
+		}
+	}
+
+	// Returns an orthonormal basis, as [state][k], of the vectors whose inner product with inWeights is zero. It is built by Gram-Schmidt
+	// on the unit vectors, starting from inWeights and taking at each step the unit vector that is furthest from the span so far, so
+	// that a frequency of 0 (which zeroes some of the weights) does not make it ill-conditioned.
+	private static double[][] createNullSpaceBasis(final double[] inWeights) {
+		final int stateCount = inWeights.length;
+		final double[][] vectors = new double[stateCount][];
+		vectors[0] = NullSpaceTableGenerator.normalizeVector(inWeights.clone());
+		final boolean[] isUsed = new boolean[stateCount];
+		for (int whichVector = 1; whichVector < stateCount; ++whichVector) {
+			double[] best = null;
+			double bestNorm = -1;
+			int bestState = -1;
+			for (int state = 0; state < stateCount; ++state) {
+				if (!isUsed[state]) {
+					final double[] candidate = new double[stateCount];
+					candidate[state] = 1;
+					for (int i = 0; i < whichVector; ++i) {
+						final double projection = vectors[i][state];
+						for (int j = 0; j < stateCount; ++j) {
+							candidate[j] -= projection * vectors[i][j];
+						}
+					}
+					final double norm = NullSpaceTableGenerator.vectorNorm(candidate);
+					if (norm > bestNorm) {
+						best = candidate;
+						bestNorm = norm;
+						bestState = state;
+					}
+				}
+			}
+			isUsed[bestState] = true;
+			vectors[whichVector] = NullSpaceTableGenerator.normalizeVector(best);
+		}
+
+		final double[][] outBasis = new double[stateCount][stateCount - 1];
+		for (int state = 0; state < stateCount; ++state) {
+			for (int k = 0; k < (stateCount - 1); ++k) {
+				outBasis[state][k] = vectors[k + 1][state];
+			}
+		}
+		return outBasis;
+	}
+
+	private static double[] normalizeVector(final double[] ioVector) {
+		final double normalizingFactor = 1 / NullSpaceTableGenerator.vectorNorm(ioVector);
+		for (int i = 0; i < ioVector.length; ++i) {
+			ioVector[i] *= normalizingFactor;
+		}
+		return ioVector;
+	}
+
+	private static double vectorNorm(final double[] inVector) {
+		double squaredSum = 0;
+		for (final double value : inVector) {
+			squaredSum += value * value;
+		}
+		return Math.sqrt(squaredSum);
+	}
+}
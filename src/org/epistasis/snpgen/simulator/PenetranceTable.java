@@ -1,5 +1,7 @@
 package org.epistasis.snpgen.simulator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -7,8 +9,6 @@ import java.io.PrintWriter;
 import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.LinkedList;
-import java.util.Random;
 
 public class PenetranceTable implements Cloneable {
 
@@ -17,9 +17,6 @@ public class PenetranceTable implements Cloneable {
 	private static final double kErrorLimit = 0.01D;
 	private static final int kWhichPenetranceCellNone = -1;
 
-	public static int fixedConflictSuccessfully = 0;
-	public static int fixedConflictUnsuccessfully = 0;
-
 	// Penetrance-table parameters
 	public int attributeCount;
 	public int snpStateCount;
@@ -34,10 +31,23 @@ public class PenetranceTable implements Cloneable {
 
 	public double edm;
 	public double oddsRatio;
+	// Set by prepareFusedNormalization(): the affine map from the unnormalized values to the scaled, prevalence-adjusted ones,
+	// the heritability that map gives, and the weighted sums of squares that the heritability and EDM are scaled from.
+	private double fusedScale;
+	private double fusedOffset;
+	private double fusedUnadjustedHeritability;
+	private double fusedSquaredDeviationSum;
+	private double fusedEdmSquaredDeviationSum;
 	public boolean useOriginAsStart;
+	// If set, empty cells are drawn by retrying nextInt(cellCount) until an unset cell comes up, which reproduces the tables of
+	// earlier versions for a given seed; otherwise they are drawn directly from the set of unset cells.
+	public boolean useLegacyCellSelection;
 	public double[] minorAlleleFrequencies;
 	public double[] majorAlleleFrequencies;
+	// Shared with genotypeProbabilities (and so with other tables); never modified in place.
 	public double[][] stateProbability;
+	private GenotypeProbabilities genotypeProbabilities;
+	private double[] cellProbabilities;
 
 	public CellId startPoint;
 
@@ -45,17 +55,48 @@ public class PenetranceTable implements Cloneable {
 	public int basisSize;
 	public BasisCell[] basis;
 	public int basisNext;
-	public LinkedList<PenetranceCellWithId> pendingCellsToSet;
 	public boolean normalized;
 	public boolean rowSumsValid;
-	public PenetranceCell[] cells;
+	// The cells are stored as parallel primitive arrays indexed by master index, rather than as one object per cell:
+	private double[] cellValues;
+	private long[] cellIsSetBits;
+	private long[] cellIsBasisElementBits;
+	// The case and control counts are only allocated once a dataset is generated from the table (see countInstance()):
 	public int[] cellCaseCount;
 	public int[] cellControlCount;
+	// The distance in master-index terms between neighbouring cells along each dimension:
+	private final int[] strides;
+	// The remaining per-cell and per-row arrays are only needed while a table is being generated or edited. They are allocated by
+	// allocateGenerationState() when first needed and are not copied by clone(), so that the (normalized) tables of a population
+	// hold little more than their values; without them, setting a cell only updates filledCellCount and checkRowSums() reads the
+	// values directly.
+	private int[] cellBasisElements;
+	// Per-row bookkeeping, indexed by [dimension][row] (see getRowIndex()): how many of the row's cells are set, the sum of their
+	// indices along the dimension, and the probability-weighted sum of their values. The counts are always current; the weighted
+	// sums go stale when the state probabilities change or a partly-filled table is rescaled, and are then rebuilt on demand.
+	private int[][] rowFilledCounts;
+	private int[][] rowIndexSums;
+	private double[][] rowWeightedSums;
+	private boolean rowWeightedSumsAreCurrent;
+	private int filledCellCount;
+	// The unset cells, in no particular order, and each cell's position in that list (or -1 if it is set), so that a cell can be
+	// removed by swapping the last entry into its place:
+	private int[] unsetCells;
+	private int[] unsetCellPositions;
+	private final int fullRowIndexSum;
+	// The propagation queue is a ring buffer of master indices; a cell's forced value is kept in pendingValues at its master index,
+	// and cellIsPendingBits keeps a cell from being queued twice.
+	private int[] pendingCells;
+	private int pendingHead;
+	private int pendingCount;
+	private double[] pendingValues;
+	private long[] cellIsPendingBits;
 
 	public double[] caseIntervals;
 	public double[] controlIntervals;
 	private final boolean usePointMethod;
 	private CellId blockedOutCellForPointMethod;
+	private CellId candidateCellForPointMethod;
 	private int nextMasterCellIdForPointMethod;
 	public String name;
 
@@ -63,29 +104,31 @@ public class PenetranceTable implements Cloneable {
 		snpStateCount = inSnpStateCount;
 		attributeCount = inAttributeCount;
 		usePointMethod = (attributeCount >= 6);
+		if (attributeCount > PenetranceTable.getMaxAttributeCount(snpStateCount)) {
+			throw new IllegalArgumentException("A penetrance table can have at most " + PenetranceTable.getMaxAttributeCount(snpStateCount)
+					+ " attributes but " + attributeCount + " were requested");
+		}
 		cellCount = 1;
 		basisSize = 1;
+		strides = new int[attributeCount];
 		for (int i = 0; i < attributeCount; ++i) {
+			strides[i] = cellCount;
 			cellCount *= snpStateCount;
 			basisSize *= (snpStateCount - 1);
 		}
+		fullRowIndexSum = (snpStateCount * (snpStateCount - 1)) / 2;
 		normalized = false;
 		minorAlleleFrequencies = new double[attributeCount];
 		majorAlleleFrequencies = new double[attributeCount];
 		stateProbability = new double[attributeCount][snpStateCount];
+		cellProbabilities = new double[cellCount];
+		genotypeProbabilities = null;
 		startPoint = new CellId(attributeCount);
-		cells = new PenetranceCell[cellCount];
-		cellCaseCount = new int[cellCount];
-		cellControlCount = new int[cellCount];
-		pendingCellsToSet = new LinkedList<PenetranceCellWithId>();
+		cellValues = new double[cellCount];
+		cellIsSetBits = new long[PenetranceTable.bitSetWordCount(cellCount)];
+		cellIsBasisElementBits = new long[PenetranceTable.bitSetWordCount(cellCount)];
 		basis = new BasisCell[basisSize];
 		basisNext = -1;
-
-		// TODO: Could reuse the cells from run to run, to save time on
-		// garbage-collection
-		for (int i = 0; i < cellCount; ++i) {
-			cells[i] = new PenetranceCell();
-		}
 		clear();
 	}
 
@@ -100,9 +143,11 @@ public class PenetranceTable implements Cloneable {
 			success = false;
 		} else {
 			success = true;
-			for (final PenetranceCell c : cells) {
-				c.setValue((factor * c.getValue()) + (prevalence * (1 - factor)));
+			for (int i = 0; i < cellCount; ++i) {
+				cellValues[i] = (factor * cellValues[i]) + (prevalence * (1 - factor));
 				// Preserve value of K and make heritability-scaling work through intercept
+			}
+			transformRowWeightedSums(factor, prevalence * (1 - factor));
 			assert Math.abs(calcPrevalence() - prevalence) < PenetranceTable.kErrorLimit;
 			calcAndSetHeritability();
 			assert Math.abs(actualHeritability - desiredHeritability) < PenetranceTable.kErrorLimit;
@@ -124,15 +169,54 @@ public class PenetranceTable implements Cloneable {
 				scale = (1 - desiredPrevalence) / (1 - prevalence);
 				offset = (desiredPrevalence - prevalence) / (1 - prevalence);
 			}
-			for (final PenetranceCell c : cells) {
-				c.setValue((scale * c.getValue()) + offset);
-				assert ((-PenetranceTable.kErrorLimit < c.getValue()) && (c.getValue() < (1F + PenetranceTable.kErrorLimit)));
+			for (int i = 0; i < cellCount; ++i) {
+				cellValues[i] = (scale * cellValues[i]) + offset;
+				assert ((-PenetranceTable.kErrorLimit < cellValues[i]) && (cellValues[i] < (1F + PenetranceTable.kErrorLimit)));
 			}
+			transformRowWeightedSums(scale, offset);
 			calcAndSetPrevalence();
 			assert Math.abs(prevalence - desiredPrevalence) < PenetranceTable.kErrorLimit;
 		}
 	}
 
+	// Finish what prepareFusedNormalization() started, for the target inDesiredHeritability: in one pass, write the normalized
+	// values and accumulate the odds-ratio sums. The prevalence, heritability and EDM follow from the prepared sums.
+	// Like adjustHeritability(), leaves the table unnormalized if the target is above the unadjusted heritability.
+	public void applyFusedNormalization(final double inDesiredHeritability) {
+		desiredHeritability = inDesiredHeritability;
+		final double factor = Math.sqrt(desiredHeritability / fusedUnadjustedHeritability);
+		if (factor > 1.0D) {
+			normalized = false;
+			return;
+		}
+		// adjustHeritability() preserves the prevalence by scaling towards it:
+		final double scale = factor * fusedScale;
+		final double offset = (factor * fusedOffset) + (prevalence * (1 - factor));
+		final double[] values = cellValues;
+		final double[] probabilities = cellProbabilities;
+		final double threshold = prevalence;
+		double sumTP = 0, sumTN = 0, sumFP = 0, sumFN = 0;
+		for (int i = 0; i < cellCount; ++i) {
+			final double value = (scale * values[i]) + offset;
+			values[i] = value;
+			final double prob = probabilities[i];
+			if (value >= threshold) {
+				sumTP += prob * value;
+				sumFP += prob * (1 - value);
+			} else {
+				sumTN += prob * (1 - value);
+				sumFN += prob * value;
+			}
+		}
+		transformRowWeightedSums(scale, offset);
+
+		final double kProduct = prevalence * (1 - prevalence);
+		actualHeritability = (scale * scale * fusedSquaredDeviationSum) / kProduct;
+		edm = (scale * scale * fusedEdmSquaredDeviationSum) / (2 * kProduct * kProduct);
+		oddsRatio = (sumTP * sumTN) / (sumFN * sumFP);
+		normalized = true;
+	}
+
 	public double calcAndSetEdm() {
 		edm = calcEdm();
 		return edm;
@@ -159,14 +243,12 @@ public class PenetranceTable implements Cloneable {
 		double prob;
 		double diff;
 		double kProduct;
-		final CellId cellId = new CellId(attributeCount);
 
 		calcAndSetPrevalence();
 		sum = 0;
 		for (int i = 0; i < cellCount; ++i) {
-			masterIndexToCellId(i, cellId);
-			prob = getProbabilityProduct(cellId);
-			diff = cells[i].getValue() - prevalence;
+			prob = cellProbabilities[i];
+			diff = cellValues[i] - prevalence;
 			sum += prob * prob * diff * diff;
 		}
 		kProduct = prevalence * (1 - prevalence);
@@ -179,14 +261,12 @@ public class PenetranceTable implements Cloneable {
 		double outHeritability;
 		double prob;
 		double diff;
-		final CellId cellId = new CellId(attributeCount);
 
 		calcAndSetPrevalence();
 		sum = 0;
 		for (int i = 0; i < cellCount; ++i) {
-			masterIndexToCellId(i, cellId);
-			prob = getProbabilityProduct(cellId);
-			diff = cells[i].getValue() - prevalence;
+			prob = cellProbabilities[i];
+			diff = cellValues[i] - prevalence;
 			sum += prob * diff * diff;
 		}
 		outHeritability = sum / (prevalence * (1 - prevalence));
@@ -197,26 +277,26 @@ public class PenetranceTable implements Cloneable {
 		final NumberFormat nf = NumberFormat.getInstance();
 		nf.setMaximumFractionDigits(3);
 		final double[][] outMarginalPenetrances = new double[attributeCount][snpStateCount];
-		final CellId cellId = new CellId(attributeCount);
+		int stride = 1;
 		for (int whichLocus = 0; whichLocus < attributeCount; ++whichLocus) {
 			final double[] freq = new double[3];
 			getAlleleFrequencies(whichLocus, freq);
 			for (int whichAlleleValue = 0; whichAlleleValue < snpStateCount; ++whichAlleleValue) {
 				double prevalence;
-				double prob;
 
 				prevalence = 0;
-				for (int i = 0; i < cellCount; ++i) {
-					masterIndexToCellId(i, cellId);
-					if (cellId.getIndex(whichLocus) == whichAlleleValue) {
+				// The cells whose index along whichLocus is whichAlleleValue come in runs of length stride, one run per block of
+				// stride * snpStateCount cells:
+				for (int blockStart = whichAlleleValue * stride; blockStart < cellCount; blockStart += stride * snpStateCount) {
+					for (int i = blockStart; i < (blockStart + stride); ++i) {
 						// Then add it the cumulative caseProportion value
-						prob = getProbabilityProduct(cellId);
-						prevalence += prob * cells[i].getValue();
+						prevalence += cellProbabilities[i] * cellValues[i];
 					}
 				}
 				prevalence /= freq[whichAlleleValue];
 				outMarginalPenetrances[whichLocus][whichAlleleValue] = prevalence;
 			}
+			stride *= snpStateCount;
 		}
 		return outMarginalPenetrances;
 	}
@@ -226,7 +306,6 @@ public class PenetranceTable implements Cloneable {
 		double outOddsRatio;
 		double prob;
 		double prev;
-		final CellId cellId = new CellId(attributeCount);
 
 		calcAndSetPrevalence();
 		sumTP = 0;
@@ -234,9 +313,8 @@ public class PenetranceTable implements Cloneable {
 		sumFP = 0;
 		sumFN = 0;
 		for (int i = 0; i < cellCount; ++i) {
-			masterIndexToCellId(i, cellId);
-			prob = getProbabilityProduct(cellId);
-			prev = cells[i].getValue();
+			prob = cellProbabilities[i];
+			prev = cellValues[i];
 			if (prev >= prevalence) {
 				sumTP += prob * prev;
 				sumFP += prob * (1 - prev);
@@ -252,18 +330,15 @@ public class PenetranceTable implements Cloneable {
 	public void calcSamplingIntervals() {
 		double prob;
 		double penetrance;
-		CellId cellId;
 		double sumCaseFractions, sumControlFractions;
 
-		cellId = new CellId(attributeCount);
 		sumCaseFractions = 0;
 		sumControlFractions = 0;
 		caseIntervals = new double[cellCount];
 		controlIntervals = new double[cellCount];
 		for (int i = 0; i < cellCount; ++i) {
-			masterIndexToCellId(i, cellId);
-			prob = getProbabilityProduct(cellId);
-			penetrance = getPenetranceValue(cellId);
+			prob = cellProbabilities[i];
+			penetrance = cellValues[i];
 
 			sumCaseFractions += prob * penetrance;
 			sumControlFractions += prob * (1 - penetrance);
@@ -287,17 +362,19 @@ public class PenetranceTable implements Cloneable {
 
 	public boolean checkRowSums(final double inDesiredRowSum) {
 		boolean success = true;
-		final CellId cellId = new CellId(attributeCount);
-		double sum;
 
+		if (rowFilledCounts == null) {
+			return checkRowSumsFromValues(inDesiredRowSum);
+		}
+		if (!rowWeightedSumsAreCurrent) {
+			rebuildRowWeightedSums();
+		}
 		for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
-			for (int i = 0; i < cellCount; ++i) {
-				masterIndexToCellId(i, cellId);
-				if (allValuesSetInRow(cellId, whichDimension)) {
-					sum = calculateWeightedSumOfSetPenetranceValues(cellId, whichDimension);
-					if (Math.abs(sum - inDesiredRowSum) > PenetranceTable.kErrorLimit) {
-						success = false;
-					}
+			final int[] filledCounts = rowFilledCounts[whichDimension];
+			final double[] sums = rowWeightedSums[whichDimension];
+			for (int row = 0; row < filledCounts.length; ++row) {
+				if ((filledCounts[row] == snpStateCount) && (Math.abs(sums[row] - inDesiredRowSum) > PenetranceTable.kErrorLimit)) {
+					success = false;
 				}
 			}
 		}
@@ -305,24 +382,40 @@ public class PenetranceTable implements Cloneable {
 	}
 
 	public void clear() {
-		for (int i = 0; i < cellCount; ++i) {
-			cells[i].clear();
+		Arrays.fill(cellIsSetBits, 0L);
+		Arrays.fill(cellIsBasisElementBits, 0L);
+		filledCellCount = 0;
+		if (rowFilledCounts != null) {
+			for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+				Arrays.fill(rowFilledCounts[whichDimension], 0);
+				Arrays.fill(rowIndexSums[whichDimension], 0);
+				Arrays.fill(rowWeightedSums[whichDimension], 0);
+			}
+			rowWeightedSumsAreCurrent = true;
+			for (int i = 0; i < cellCount; ++i) {
+				unsetCells[i] = i;
+				unsetCellPositions[i] = i;
+			}
 		}
 
-		for (int i = 0; i < cellCount; ++i) {
-			cellCaseCount[i] = 0;
-			cellControlCount[i] = 0;
+		if (cellCaseCount != null) {
+			Arrays.fill(cellCaseCount, 0);
+			Arrays.fill(cellControlCount, 0);
 		}
 	}
 
 	public void clearPenetranceValue(final CellId inCellId) {
 		final int index = cellIdToMasterIndex(inCellId);
-		if (cells[index].isBasisElement) {
-			final int whichBasisElement = cells[index].getWhichBasisElement();
+		allocateGenerationState();
+		if (PenetranceTable.getBit(cellIsBasisElementBits, index)) {
+			final int whichBasisElement = cellBasisElements[index];
 			basis[whichBasisElement].whichPenetranceCell = PenetranceTable.kWhichPenetranceCellNone;
 		}
-		cells[index].isSet = false;
-		cells[index].isBasisElement = false;
+		if (PenetranceTable.getBit(cellIsSetBits, index)) {
+			markCellUnset(index);
+		}
+		PenetranceTable.clearBit(cellIsSetBits, index);
+		PenetranceTable.clearBit(cellIsBasisElementBits, index);
 	}
 
 	@Override
@@ -332,10 +425,14 @@ public class PenetranceTable implements Cloneable {
 		pt.minorAlleleFrequencies = Arrays.copyOf(minorAlleleFrequencies, minorAlleleFrequencies.length);
 		pt.majorAlleleFrequencies = Arrays.copyOf(majorAlleleFrequencies, majorAlleleFrequencies.length);
 
-		pt.stateProbability = new double[stateProbability.length][];
-		for (int i = 0; i < stateProbability.length; ++i) {
-			pt.stateProbability[i] = Arrays.copyOf(stateProbability[i], stateProbability[i].length);
+		if (genotypeProbabilities == null) {
+			pt.stateProbability = new double[stateProbability.length][];
+			for (int i = 0; i < stateProbability.length; ++i) {
+				pt.stateProbability[i] = Arrays.copyOf(stateProbability[i], stateProbability[i].length);
+			}
+			pt.cellProbabilities = Arrays.copyOf(cellProbabilities, cellProbabilities.length);
 		}
+		// else the (immutable) genotype probabilities are shared with the clone
 
 		pt.basis = new BasisCell[basis.length];
 		for (int i = 0; i < basis.length; ++i) {
@@ -346,52 +443,57 @@ public class PenetranceTable implements Cloneable {
 			}
 		}
 
-		pt.cells = new PenetranceCell[cells.length];
-		for (int i = 0; i < cells.length; ++i) {
-			pt.cells[i] = (PenetranceCell) cells[i].clone();
-			pt.cellCaseCount[i] = cellCaseCount[i];
-			pt.cellControlCount[i] = cellControlCount[i];
+		pt.cellValues = Arrays.copyOf(cellValues, cellValues.length);
+		pt.cellIsSetBits = Arrays.copyOf(cellIsSetBits, cellIsSetBits.length);
+		pt.cellIsBasisElementBits = Arrays.copyOf(cellIsBasisElementBits, cellIsBasisElementBits.length);
+		if (cellCaseCount != null) {
+			pt.cellCaseCount = Arrays.copyOf(cellCaseCount, cellCaseCount.length);
+			pt.cellControlCount = Arrays.copyOf(cellControlCount, cellControlCount.length);
 		}
+		// The clone rebuilds its generation state from its set cells if it ever needs it:
+		pt.releaseGenerationState();
 
 		return pt;
 	}
 
-	public int countRemainingEmptyCells() {
-		int outEmpty;
-
-		outEmpty = 0;
-		for (int i = 0; i < cellCount; ++i) {
-			if (!cells[i].isSet) {
-				++outEmpty;
-			}
+	// Count an instance of a generated dataset, of class case if inIsCase and control otherwise, that falls in the cell inMasterIndex.
+	public void countInstance(final int inMasterIndex, final boolean inIsCase) {
+		allocateCaseControlCounts();
+		if (inIsCase) {
+			++cellCaseCount[inMasterIndex];
+		} else {
+			++cellControlCount[inMasterIndex];
 		}
-		return outEmpty;
 	}
 
-	public ErrorState generateUnnormalized(final Random inRandom) throws Exception {
+	public int countRemainingEmptyCells() {
+		return cellCount - filledCellCount;
+	}
+
+	public ErrorState generateUnnormalized(final RandomSource inRandom) throws Exception {
 		ErrorState error;
 		ErrorState outError = ErrorState.None;
-		final CellId cellId = new CellId(attributeCount);
-		boolean emptyCellsRemaining;
+		int masterIndex;
 
 		if (usePointMethod) {
 			blockedOutCellForPointMethod = new CellId(attributeCount);
+			candidateCellForPointMethod = new CellId(attributeCount);
 			masterIndexToCellId(inRandom.nextInt(cellCount), blockedOutCellForPointMethod);
 			nextMasterCellIdForPointMethod = 0;
 		}
 
+		allocateGenerationState();
 		final long foo = inRandom.nextLong();
 		// foo = 8442823125929271046L;
 		inRandom.setSeed(foo);
 		cellsPicked = 0;
-		while (true) {
-			emptyCellsRemaining = emptyCellRemaining();
-			if (!emptyCellsRemaining) {
-				break;
-			}
-			pickNextEmptyCell(inRandom, cellId);
+		if (!rowWeightedSumsAreCurrent) {
+			rebuildRowWeightedSums();
+		}
+		while (filledCellCount < cellCount) {
+			masterIndex = pickNextEmptyCell(inRandom);
 			++cellsPicked;
-			error = setRandomPenetranceValueAndPropagateIt(cellId);
+			error = setRandomPenetranceValueAndPropagateIt(masterIndex);
 			if (error != ErrorState.None) {
 				outError = error;
 				break;
@@ -400,6 +502,19 @@ public class PenetranceTable implements Cloneable {
 		return outError;
 	}
 
+	// Fill every cell with the table whose coordinates in inGenerator's orthonormal basis, of the tables whose rows all have zero
+	// weighted sums, are this table's basis values. Unlike generateUnnormalized(RandomSource), this never fails.
+	public ErrorState generateUnnormalized(final NullSpaceTableGenerator inGenerator) {
+		assert inGenerator.matches(genotypeProbabilities) && (filledCellCount == 0) && (basisNext == 0);
+		allocateGenerationState();
+		// The propagation queue's values are not in use, so they serve as the generator's scratch space:
+		inGenerator.generate(basis, cellValues, pendingValues);
+		basisNext = basisSize;
+		cellsPicked = 0;
+		markAllCellsSet();
+		return ErrorState.None;
+	}
+
 	public double getActualHeritability() {
 		return actualHeritability;
 	}
@@ -413,13 +528,25 @@ public class PenetranceTable implements Cloneable {
 		return attributeNames;
 	}
 
+	public double getCellProbability(final int inMasterIndex) {
+		return cellProbabilities[inMasterIndex];
+	}
+
+	public GenotypeProbabilities getGenotypeProbabilities() {
+		return genotypeProbabilities;
+	}
+
 	public double[] getMinorAlleleFrequencies() {
 		return minorAlleleFrequencies;
 	}
 
 	public double getPenetranceValue(final CellId inCellId) {
 		final int index = cellIdToMasterIndex(inCellId);
-		return cells[index].getValue();
+		return cellValues[index];
+	}
+
+	public double getPenetranceValue(final int inMasterIndex) {
+		return cellValues[inMasterIndex];
 	}
 
 	public double getProbabilityProduct(final CellId inCellId) {
@@ -440,20 +567,33 @@ public class PenetranceTable implements Cloneable {
 		}
 	}
 
-	public void initialize(final Random inRandom, final double[] inMinorAlleleFrequencies) {
+	public void initialize(final RandomSource inRandom, final double[] inMinorAlleleFrequencies) {
+		setMinorAlleleFrequencies(inMinorAlleleFrequencies);
+		initialize(inRandom, genotypeProbabilities);
+	}
+
+	public void initialize(final RandomSource inRandom, final GenotypeProbabilities inGenotypeProbabilities) {
 		rowSumsValid = false;
 		normalized = false;
 
 		useOriginAsStart = false;
 
-		setMinorAlleleFrequencies(inMinorAlleleFrequencies);
+		setGenotypeProbabilities(inGenotypeProbabilities);
+		allocateGenerationState();
 
 		double value;
 		double basisSquaredSum = 0;
 		// Generate basis parameters and normalize them:
 		for (int i = 0; i < basisSize; ++i) {
 			value = inRandom.nextGaussian();
-			basis[i] = new BasisCell(value, PenetranceTable.kWhichPenetranceCellNone);
+			if (basis[i] == null) {
+				basis[i] = new BasisCell(value, PenetranceTable.kWhichPenetranceCellNone);
+			} else {
+				// Reuse the basis cells of a table that has been reset()
+				basis[i].isSet = true;
+				basis[i].value = value;
+				basis[i].whichPenetranceCell = PenetranceTable.kWhichPenetranceCellNone;
+			}
 			basisSquaredSum += value * value;
 		}
 		final double normalizingFactor = 1 / Math.sqrt(basisSquaredSum);
@@ -486,6 +626,35 @@ public class PenetranceTable implements Cloneable {
 		adjustHeritability();
 	}
 
+	// Work out, from a single read-only pass over the unnormalized values, what scaleToUnitInterval() and adjustPrevalence() would
+	// turn them into, and what heritability calcHeritability() would then find, without modifying the values; returns that
+	// heritability. Both steps are affine maps, so the prevalence, heritability and EDM after them (and after the affine
+	// heritability adjustment) follow from the probability-weighted sums of the values and their squares.
+	// The generated tables' rows have zero weighted sums, so their values are centred and the sums of squares lose no precision.
+	// applyFusedNormalization() then finishes the job for a target heritability, on this table or on a clone of it.
+	public double prepareFusedNormalization() {
+		final double[] values = cellValues;
+		final double[] probabilities = cellProbabilities;
+		double min = values[0];
+		double max = values[0];
+		double sumP = 0, sumPV = 0, sumPVV = 0, sumPP = 0, sumPPV = 0, sumPPVV = 0;
+		for (int i = 0; i < cellCount; ++i) {
+			final double value = values[i];
+			final double prob = probabilities[i];
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			final double pv = prob * value;
+			final double ppv = prob * pv;
+			sumP += prob;
+			sumPV += pv;
+			sumPVV += pv * value;
+			sumPP += prob * prob;
+			sumPPV += ppv;
+			sumPPVV += ppv * value;
+		}
+		return completeFusedNormalization(min, max, sumP, sumPV, sumPVV, sumPP, sumPPV, sumPPVV);
+	}
+
 	public void print() {
 		for (int i = 0; i < cellCount; ++i) {
 			if ((i % 3) == 0) {
@@ -494,7 +663,7 @@ public class PenetranceTable implements Cloneable {
 			if ((i % 9) == 0) {
 				System.out.println();
 			}
-			System.out.print(cells[i].getValue() + "\t");
+			System.out.print(cellValues[i] + "\t");
 		}
 	}
 
@@ -541,6 +710,36 @@ public class PenetranceTable implements Cloneable {
 		}
 	}
 
+	// Set the table's values and scores from a record written by writeBinaryValues(); the table must have the writer's shape.
+	public void readBinaryValues(final DataInput inStream) throws IOException {
+		final double[] values = new double[cellCount];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = inStream.readDouble();
+		}
+		setPenetranceValues(values);
+		desiredHeritability = inStream.readDouble();
+		final double storedPrevalence = inStream.readDouble();
+		desiredPrevalence = Double.isNaN(storedPrevalence) ? null : storedPrevalence;
+		actualHeritability = inStream.readDouble();
+		prevalence = inStream.readDouble();
+		edm = inStream.readDouble();
+		oddsRatio = inStream.readDouble();
+		normalized = inStream.readBoolean();
+		rowSumsValid = inStream.readBoolean();
+	}
+
+	// Return the table to its just-constructed state, keeping its arrays (and its genotype probabilities) so that it can be used
+	// for another try without reallocating them. Callers must initialize() it again before generating.
+	public void reset() {
+		clear();
+		basisNext = -1;
+		cellsPicked = 0;
+		normalized = false;
+		rowSumsValid = false;
+		caseIntervals = null;
+		controlIntervals = null;
+	}
+
 	public void saveBasisToFile(final File inDestFile, final boolean inAppend) throws IOException {
 
 		try (PrintWriter outputStream = new PrintWriter(new FileWriter(inDestFile, inAppend));) {
@@ -564,6 +763,7 @@ public class PenetranceTable implements Cloneable {
 	public double saveCaseControlValuesToFile(final File inDestFile, final boolean inAppend) throws IOException {
 		double outBalancedAccuracy;
 
+		allocateCaseControlCounts();
 		try(PrintWriter outputStream = new PrintWriter(new FileWriter(inDestFile, inAppend));) {
 			if (inAppend) {
 				outputStream.println();
@@ -638,9 +838,16 @@ public class PenetranceTable implements Cloneable {
 		final CellId cellId = inCell.cellId;
 		assert (!getPenetranceIsSet(cellId));
 		final int index = cellIdToMasterIndex(cellId);
-		cells[index] = new PenetranceCell(inCell);
+		allocateGenerationState();
+		cellValues[index] = inCell.getValue();
+		PenetranceTable.setBit(cellIsSetBits, index);
+		markCellSet(index);
 		if (inCell.isBasisElement) {
-			basis[inCell.getWhichBasisElement()].whichPenetranceCell = cellIdToMasterIndex(cellId);
+			PenetranceTable.setBit(cellIsBasisElementBits, index);
+			cellBasisElements[index] = inCell.getWhichBasisElement();
+			basis[inCell.getWhichBasisElement()].whichPenetranceCell = index;
+		} else {
+			PenetranceTable.clearBit(cellIsBasisElementBits, index);
 		}
 	}
 
@@ -660,14 +867,14 @@ public class PenetranceTable implements Cloneable {
 		double min, max;
 		double slope;
 
-		max = cells[0].getValue();
-		min = cells[0].getValue();
-		for (final PenetranceCell c : cells) {
-			if (max < c.getValue()) {
-				max = c.getValue();
+		max = cellValues[0];
+		min = cellValues[0];
+		for (int i = 0; i < cellCount; ++i) {
+			if (max < cellValues[i]) {
+				max = cellValues[i];
 			}
-			if (min > c.getValue()) {
-				min = c.getValue();
+			if (min > cellValues[i]) {
+				min = cellValues[i];
 			}
 		}
 		
@@ -676,38 +883,60 @@ public class PenetranceTable implements Cloneable {
 			prevalence = PenetranceTable.kValueMax;
 		}
 		slope = -prevalence / min;
-		for (final PenetranceCell c : cells) {
-			c.setValue((slope * c.getValue()) + prevalence);
+		for (int i = 0; i < cellCount; ++i) {
+			cellValues[i] = (slope * cellValues[i]) + prevalence;
 		}
+		transformRowWeightedSums(slope, prevalence);
 	}
 
 	public void setAttributeNames(final String[] attributeNames) {
 		this.attributeNames = attributeNames;
 	}
 
-	public void setMinorAlleleFrequencies(final double[] inMinorAlleleFrequencies) {
-		assert inMinorAlleleFrequencies.length == attributeCount;
+	// Use the given precomputed genotype probabilities, which may be shared with other tables.
+	public void setGenotypeProbabilities(final GenotypeProbabilities inGenotypeProbabilities) {
+		assert (inGenotypeProbabilities.attributeCount == attributeCount) && (inGenotypeProbabilities.snpStateCount == snpStateCount);
+		if (inGenotypeProbabilities == genotypeProbabilities) {
+			return;
+		}
+		genotypeProbabilities = inGenotypeProbabilities;
+		final double[] mafs = inGenotypeProbabilities.getMinorAlleleFrequencies();
 		for (int i = 0; i < attributeCount; ++i) {
-			minorAlleleFrequencies[i] = inMinorAlleleFrequencies[i];
+			minorAlleleFrequencies[i] = mafs[i];
 			majorAlleleFrequencies[i] = 1 - minorAlleleFrequencies[i];
 		}
+		stateProbability = inGenotypeProbabilities.getStateProbabilities();
+		cellProbabilities = inGenotypeProbabilities.getCellProbabilities();
+		// The row sums are weighted by the state probabilities:
+		rowWeightedSumsAreCurrent = false;
+	}
 
-		
-
-		int comb = 1;
-		for (int j = 0; j < snpStateCount; ++j) {
-			for (int i = 0; i < attributeCount; ++i) {
-				stateProbability[i][j] = comb * Math.pow(minorAlleleFrequencies[i], j)
-						* Math.pow(majorAlleleFrequencies[i], snpStateCount - j - 1);
-			comb *= snpStateCount - 1 - j;
-			comb /= j + 1;
+	public void setMinorAlleleFrequencies(final double[] inMinorAlleleFrequencies) {
+		assert inMinorAlleleFrequencies.length == attributeCount;
+		if ((genotypeProbabilities == null) || !genotypeProbabilities.matches(snpStateCount, inMinorAlleleFrequencies)) {
+			setGenotypeProbabilities(new GenotypeProbabilities(snpStateCount, inMinorAlleleFrequencies));
 		}
 	}
 
 	public void setPenetranceValue(final CellId inCellId, final double inValue) {
-		final int index = cellIdToMasterIndex(inCellId);
-		cells[index].setValue(inValue);
-		cells[index].isSet = true;
+		setPenetranceValue(cellIdToMasterIndex(inCellId), inValue);
+	}
+
+	public void setPenetranceValue(final int inMasterIndex, final double inValue) {
+		if (PenetranceTable.getBit(cellIsSetBits, inMasterIndex)) {
+			markCellUnset(inMasterIndex);
+		}
+		cellValues[inMasterIndex] = inValue;
+		PenetranceTable.setBit(cellIsSetBits, inMasterIndex);
+		markCellSet(inMasterIndex);
+	}
+
+	// Replace every cell's value with inValues (in master-index order), leaving the table unnormalized.
+	public void setPenetranceValues(final double[] inValues) {
+		System.arraycopy(inValues, 0, cellValues, 0, cellCount);
+		normalized = false;
+		rowSumsValid = false;
+		markAllCellsSet();
 	}
 
 	public void write(final PrintWriter outputStream) throws IOException {
@@ -726,13 +955,41 @@ public class PenetranceTable implements Cloneable {
 					// squares
 				}
 			}
-			outputStream.print(cells[i].getValue());
+			outputStream.print(cellValues[i]);
 			if (((i + 1) % snpStateCount) != 0) {
 				outputStream.print(delimiter);
 			}
 		}
 	}
 
+	// Write the table's attributes, values and scores exactly, for readBinary(); the generation state is not written.
+	public void writeBinary(final DataOutput outStream) throws IOException {
+		outStream.writeInt(snpStateCount);
+		outStream.writeInt(attributeCount);
+		for (int i = 0; i < attributeCount; ++i) {
+			outStream.writeUTF(attributeNames[i]);
+			outStream.writeDouble(minorAlleleFrequencies[i]);
+		}
+		writeBinaryValues(outStream);
+	}
+
+	// Write the table's values and scores exactly, for readBinaryValues(), in getBinaryValuesByteCount() bytes. Tables that share their
+	// attributes can be stored this way as fixed-size records.
+	public void writeBinaryValues(final DataOutput outStream) throws IOException {
+		for (int i = 0; i < cellCount; ++i) {
+			outStream.writeDouble(cellValues[i]);
+		}
+		outStream.writeDouble(desiredHeritability);
+		// (NaN for no desired prevalence, which keeps the record's size fixed)
+		outStream.writeDouble((desiredPrevalence == null) ? Double.NaN : desiredPrevalence);
+		outStream.writeDouble(actualHeritability);
+		outStream.writeDouble(prevalence);
+		outStream.writeDouble(edm);
+		outStream.writeDouble(oddsRatio);
+		outStream.writeBoolean(normalized);
+		outStream.writeBoolean(rowSumsValid);
+	}
+
 	public void writeWithStats(final PrintWriter outputStream, final boolean inSaveUnnormalized) throws IOException {
 		// outputStream.println("Attribute count: " + attributeCount);
 		outputStream.print("Attribute names:");
@@ -787,110 +1044,246 @@ public class PenetranceTable implements Cloneable {
 	}
 
 
-	private boolean allValuesSetInRow(final CellId inCellId, final int inWhichDimension) {
-		return (countFilledCells(inCellId, inWhichDimension, null) == snpStateCount);
+	private void allocateCaseControlCounts() {
+		if (cellCaseCount == null) {
+			cellCaseCount = new int[cellCount];
+			cellControlCount = new int[cellCount];
+		}
+	}
+
+	// Allocate the generation state if the table does not have it, rebuilding it from the cells that are already set.
+	private void allocateGenerationState() {
+		if (rowFilledCounts != null) {
+			return;
+		}
+		final int rowCount = cellCount / snpStateCount;
+		cellBasisElements = new int[cellCount];
+		rowFilledCounts = new int[attributeCount][rowCount];
+		rowIndexSums = new int[attributeCount][rowCount];
+		rowWeightedSums = new double[attributeCount][rowCount];
+		rowWeightedSumsAreCurrent = false;
+		unsetCells = new int[cellCount];
+		unsetCellPositions = new int[cellCount];
+		pendingCells = new int[cellCount];
+		pendingHead = 0;
+		pendingCount = 0;
+		pendingValues = new double[cellCount];
+		cellIsPendingBits = new long[PenetranceTable.bitSetWordCount(cellCount)];
+
+		for (int i = 0; i < basisSize; ++i) {
+			if ((basis[i] != null) && (basis[i].whichPenetranceCell != PenetranceTable.kWhichPenetranceCellNone)) {
+				cellBasisElements[basis[i].whichPenetranceCell] = i;
+			}
+		}
+		int unsetCount = 0;
+		for (int i = 0; i < cellCount; ++i) {
+			if (PenetranceTable.getBit(cellIsSetBits, i)) {
+				unsetCellPositions[i] = -1;
+				for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+					final int row = getRowIndex(i, whichDimension);
+					++rowFilledCounts[whichDimension][row];
+					rowIndexSums[whichDimension][row] += (i / strides[whichDimension]) % snpStateCount;
+				}
+			} else {
+				unsetCells[unsetCount] = i;
+				unsetCellPositions[i] = unsetCount;
+				++unsetCount;
+			}
+		}
+		assert unsetCount == (cellCount - filledCellCount);
 	}
 
 	private double calcPrevalence() {
 		double outPrevalence;
 		double prob;
-		final CellId cellId = new CellId(attributeCount);
 
 		outPrevalence = 0;
 		for (int i = 0; i < cellCount; ++i) {
-			masterIndexToCellId(i, cellId);
-			prob = getProbabilityProduct(cellId);
-			outPrevalence += prob * cells[i].getValue();
+			prob = cellProbabilities[i];
+			outPrevalence += prob * cellValues[i];
 		}
 		return outPrevalence;
 	}
 
-	// All of the cells in the row through inCellId along inWhichDimension are
-	// filled,
-	// so we can use them to calculate the value at inCellId.
-	private double calculateForcedPenetranceValue(final CellId inCellId, final int inWhichDimension) {
-		double sum;
-		double outValue;
-		int whereIsCellAlongDimension;
+	// The part of prepareFusedNormalization() that follows the pass over the values, given the values' minimum and maximum and the
+	// sums of (probability^i * value^j) that it accumulated. Used directly by PenetranceTableBatch, which accumulates the sums for
+	// many tables at once.
+	double completeFusedNormalization(final double inMin, final double inMax, final double inSumP, final double inSumPV,
+			final double inSumPVV, final double inSumPP, final double inSumPPV, final double inSumPPVV) {
+		// scaleToUnitInterval():
+		double scaledPrevalence = inMin / (inMin - inMax);
+		if (scaledPrevalence > PenetranceTable.kValueMax) {
+			scaledPrevalence = PenetranceTable.kValueMax;
+		}
+		double scale = -scaledPrevalence / inMin;
+		double offset = scaledPrevalence;
+		// adjustPrevalence():
+		if ((desiredPrevalence != null) && (desiredPrevalence != scaledPrevalence)) {
+			double prevalenceScale = 1, prevalenceOffset = 0;
+			if (desiredPrevalence < scaledPrevalence) {
+				prevalenceScale = desiredPrevalence / scaledPrevalence;
+			} else if (desiredPrevalence > scaledPrevalence) {
+				prevalenceScale = (1 - desiredPrevalence) / (1 - scaledPrevalence);
+				prevalenceOffset = (desiredPrevalence - scaledPrevalence) / (1 - scaledPrevalence);
+			}
+			scale *= prevalenceScale;
+			offset = (prevalenceScale * offset) + prevalenceOffset;
+		}
+		fusedScale = scale;
+		fusedOffset = offset;
+		prevalence = (scale * inSumPV) + (offset * inSumP);
+
+		// Deviations are taken from the weighted sum, as calcHeritability() takes them from the prevalence:
+		fusedSquaredDeviationSum = (inSumPVV - (2 * inSumPV * inSumPV)) + (inSumPV * inSumPV * inSumP);
+		fusedEdmSquaredDeviationSum = (inSumPPVV - (2 * inSumPV * inSumPPV)) + (inSumPV * inSumPV * inSumPP);
+		fusedUnadjustedHeritability = (scale * scale * fusedSquaredDeviationSum) / (prevalence * (1 - prevalence));
+		return fusedUnadjustedHeritability;
+	}
 
-		whereIsCellAlongDimension = inCellId.getIndex(inWhichDimension);
-		sum = calculateWeightedSumOfSetPenetranceValues(inCellId, inWhichDimension);
-		outValue = (PenetranceTable.kPenetranceSum - sum) / stateProbability[inWhichDimension][whereIsCellAlongDimension];
+	// Check the weighted sum of every full row by reading the values, for a table without generation state. Each dimension's rows are
+	// visited as the blocks of cells whose index along that dimension is 0.
+	private boolean checkRowSumsFromValues(final double inDesiredRowSum) {
+		for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+			final int stride = strides[whichDimension];
+			final double[] weights = stateProbability[whichDimension];
+			for (int blockStart = 0; blockStart < cellCount; blockStart += stride * snpStateCount) {
+				for (int rowStart = blockStart; rowStart < (blockStart + stride); ++rowStart) {
+					double sum = 0;
+					boolean isFull = true;
+					for (int j = 0; j < snpStateCount; ++j) {
+						final int masterIndex = rowStart + (j * stride);
+						isFull &= PenetranceTable.getBit(cellIsSetBits, masterIndex);
+						sum += weights[j] * cellValues[masterIndex];
+					}
+					if (isFull && (Math.abs(sum - inDesiredRowSum) > PenetranceTable.kErrorLimit)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
 
-		assert (countFilledCells(inCellId, inWhichDimension, null) == (snpStateCount - 1));
-		setPenetranceValue(inCellId, outValue);
-		sum = calculateWeightedSumOfSetPenetranceValues(inCellId, inWhichDimension);
-		assert ((Math.abs(sum - PenetranceTable.kPenetranceSum) < PenetranceTable.kErrorLimit));
-		clearPenetranceValue(inCellId);
+	void copyPenetranceValues(final double[] outValues, final int inOffset) {
+		System.arraycopy(cellValues, 0, outValues, inOffset, cellCount);
+	}
 
-		return outValue;
+	private int dequeuePendingCell() {
+		final int outMasterIndex = pendingCells[pendingHead];
+		if (++pendingHead == cellCount) {
+			pendingHead = 0;
+		}
+		--pendingCount;
+		PenetranceTable.clearBit(cellIsPendingBits, outMasterIndex);
+		return outMasterIndex;
 	}
 
+	private void enqueuePendingCell(final int inMasterIndex, final double inValue) {
+		assert pendingCount < cellCount;
+		int tail = pendingHead + pendingCount;
+		if (tail >= cellCount) {
+			tail -= cellCount;
+		}
+		pendingCells[tail] = inMasterIndex;
+		++pendingCount;
+		pendingValues[inMasterIndex] = inValue;
+		PenetranceTable.setBit(cellIsPendingBits, inMasterIndex);
+	}
 
-	private double calculateWeightedSumOfSetPenetranceValues(final CellId inCellId, final int inWhichDimension) {
-		double sum;
-		final CellId tempCellId = new CellId(inCellId);
+	private boolean getPenetranceIsSet(final CellId inCellId) {
+		final int index = cellIdToMasterIndex(inCellId);
+		return PenetranceTable.getBit(cellIsSetBits, index);
+	}
 
-		sum = 0;
-		for (int i = 0; i < snpStateCount; ++i) {
-			tempCellId.setIndex(inWhichDimension, i);
-			if (getPenetranceIsSet(tempCellId)) {
-				sum += stateProbability[inWhichDimension][i] * getPenetranceValue(tempCellId);
+	// The rows along a dimension are numbered by dropping that dimension's index from the master index.
+	private int getRowIndex(final int inMasterIndex, final int inWhichDimension) {
+		final int stride = strides[inWhichDimension];
+		final int quotient = inMasterIndex / stride;
+		return (inMasterIndex - (quotient * stride)) + ((quotient / snpStateCount) * stride);
+	}
+
+	// Account for every cell having been set at once, none of them from a basis element.
+	private void markAllCellsSet() {
+		Arrays.fill(cellIsSetBits, -1L);
+		if ((cellCount % Long.SIZE) != 0) {
+			cellIsSetBits[cellIsSetBits.length - 1] = (1L << (cellCount % Long.SIZE)) - 1;
+		}
+		Arrays.fill(cellIsBasisElementBits, 0L);
+		filledCellCount = cellCount;
+		if (rowFilledCounts != null) {
+			for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+				Arrays.fill(rowFilledCounts[whichDimension], snpStateCount);
+				Arrays.fill(rowIndexSums[whichDimension], fullRowIndexSum);
 			}
+			Arrays.fill(unsetCellPositions, -1);
+			rebuildRowWeightedSums();
 		}
-		return sum;
 	}
 
-	// For each cell in the "row" specified by inWhichDimension of the
-	// hypercube, return how many cells are set.
-	// If there is at least one empty cell, outEmptyCellId returns one of them.
-	private int countFilledCells(final CellId inWhichCell, final int inWhichDimension, final CellId outEmptyCellId) {
-		int filledCells;
-		final CellId tempCellId = new CellId(inWhichCell);
-
-		filledCells = 0;
-		for (int j = 0; j < snpStateCount; ++j) {
-			tempCellId.setIndex(inWhichDimension, j);
-			if (getPenetranceIsSet(tempCellId)) {
-				++filledCells;
-			} else {
-				if (outEmptyCellId != null) {
-					outEmptyCellId.copyFrom(tempCellId);
-				}
+	// Account for the newly-set cell inMasterIndex in each row through it, and take it out of the unset cells.
+	private void markCellSet(final int inMasterIndex) {
+		if (rowFilledCounts == null) {
+			++filledCellCount;
+			return;
+		}
+		final double value = cellValues[inMasterIndex];
+		for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+			final int row = getRowIndex(inMasterIndex, whichDimension);
+			final int whereIsCellAlongDimension = (inMasterIndex / strides[whichDimension]) % snpStateCount;
+			++rowFilledCounts[whichDimension][row];
+			rowIndexSums[whichDimension][row] += whereIsCellAlongDimension;
+			if (rowWeightedSumsAreCurrent) {
+				rowWeightedSums[whichDimension][row] += stateProbability[whichDimension][whereIsCellAlongDimension] * value;
 			}
 		}
-		return filledCells;
-	}
+		++filledCellCount;
 
-	// Return true if there are any cells not set yet, false otherwise.
-	private boolean emptyCellRemaining() {
-		boolean outFoundEmpty;
+		// Move the last unset cell into this one's place:
+		final int position = unsetCellPositions[inMasterIndex];
+		final int lastUnsetCell = unsetCells[cellCount - filledCellCount];
+		unsetCells[position] = lastUnsetCell;
+		unsetCellPositions[lastUnsetCell] = position;
+		unsetCellPositions[inMasterIndex] = -1;
+	}
 
-		outFoundEmpty = false;
-		for (int i = 0; i < cellCount; ++i) {
-			if (!cells[i].isSet) {
-				outFoundEmpty = true;
-				break;
+	private void markCellUnset(final int inMasterIndex) {
+		if (rowFilledCounts == null) {
+			--filledCellCount;
+			return;
+		}
+		final double value = cellValues[inMasterIndex];
+		for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+			final int row = getRowIndex(inMasterIndex, whichDimension);
+			final int whereIsCellAlongDimension = (inMasterIndex / strides[whichDimension]) % snpStateCount;
+			--rowFilledCounts[whichDimension][row];
+			rowIndexSums[whichDimension][row] -= whereIsCellAlongDimension;
+			if (rowWeightedSumsAreCurrent) {
+				rowWeightedSums[whichDimension][row] -= stateProbability[whichDimension][whereIsCellAlongDimension] * value;
 			}
 		}
-		return outFoundEmpty;
-	}
+		--filledCellCount;
 
-	private boolean getPenetranceIsSet(final CellId inCellId) {
-		final int index = cellIdToMasterIndex(inCellId);
-		return cells[index].isSet;
+		final int position = cellCount - filledCellCount - 1;
+		unsetCells[position] = inMasterIndex;
+		unsetCellPositions[inMasterIndex] = position;
 	}
 
-	// inPreviousAttempts can be used for randomization if we want determinism
-	private void pickNextEmptyCell(final Random inRandom, final CellId outCellId) throws Exception {
-		int attempts;
+	private int pickNextEmptyCell(final RandomSource inRandom) throws Exception {
 		int masterIndex;
 		if (usePointMethod) {
 			boolean found = false;
+			masterIndex = -1;
+			// candidateCellForPointMethod holds the indices of nextMasterCellIdForPointMethod, and is stepped along with it as an
+			// odometer rather than recomputed with div/mod:
+			final int[] candidateIndices = candidateCellForPointMethod.indices;
 			while (nextMasterCellIdForPointMethod < cellCount) {
-				masterIndexToCellId(nextMasterCellIdForPointMethod++, outCellId);
-				if (!blockedOutCellForPointMethod.matchesOnAnyDimension(outCellId)) {
-					assert !cells[nextMasterCellIdForPointMethod - 1].isSet;
+				masterIndex = nextMasterCellIdForPointMethod++;
+				final boolean isCandidate = !blockedOutCellForPointMethod.matchesOnAnyDimension(candidateCellForPointMethod);
+				for (int i = 0; (i < attributeCount) && (++candidateIndices[i] == snpStateCount); ++i) {
+					candidateIndices[i] = 0;
+				}
+				if (isCandidate) {
+					assert !PenetranceTable.getBit(cellIsSetBits, masterIndex);
 					found = true;
 					break;
 				}
@@ -898,101 +1291,190 @@ public class PenetranceTable implements Cloneable {
 			if (!found) {
 				throw new Exception("Unable to find an empty cell that works");
 			}
-		} else {
-			attempts = 0;
-			while (true) {
+		} else if (useLegacyCellSelection) {
+			do {
 				masterIndex = inRandom.nextInt(cellCount);
-				if (!cells[masterIndex].isSet) {
-					break;
-				}
-				if (attempts > 100) {
-					throw new Exception("Unable to find an empty cell that works");
+			} while (PenetranceTable.getBit(cellIsSetBits, masterIndex));
+		} else {
+			masterIndex = unsetCells[inRandom.nextInt(cellCount - filledCellCount)];
+		}
+		return masterIndex;
+	}
+
+	private void rebuildRowWeightedSums() {
+		for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+			Arrays.fill(rowWeightedSums[whichDimension], 0);
+		}
+		for (int i = 0; i < cellCount; ++i) {
+			if (PenetranceTable.getBit(cellIsSetBits, i)) {
+				for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+					final int whereIsCellAlongDimension = (i / strides[whichDimension]) % snpStateCount;
+					rowWeightedSums[whichDimension][getRowIndex(i, whichDimension)] += stateProbability[whichDimension][whereIsCellAlongDimension]
+							* cellValues[i];
 				}
 			}
-			masterIndexToCellId(masterIndex, outCellId);
 		}
+		rowWeightedSumsAreCurrent = true;
 	}
 
-	private ErrorState setRandomPenetranceValueAndPropagateIt(final CellId inCellId) throws Exception {
+	private void releaseGenerationState() {
+		cellBasisElements = null;
+		rowFilledCounts = null;
+		rowIndexSums = null;
+		rowWeightedSums = null;
+		rowWeightedSumsAreCurrent = false;
+		unsetCells = null;
+		unsetCellPositions = null;
+		pendingCells = null;
+		pendingValues = null;
+		cellIsPendingBits = null;
+	}
+
+	// Assign the next basis value to the (empty) cell inMasterIndex, then repeatedly fill in every cell whose value is forced
+	// because the rest of one of its rows has been set. Each forced cell is queued at most once, with the value from the first row
+	// that forced it; later rows through it are checked for conflicts when it is set.
+	private ErrorState setRandomPenetranceValueAndPropagateIt(final int inMasterIndex) {
 		ErrorState outError = ErrorState.None;
-		int filledCells;
-		PenetranceCellWithId penetranceCell;
-		PenetranceCellWithId currPenetranceCell;
-		final CellId emptyCellId = new CellId(attributeCount);
-		double sum;
 
-		penetranceCell = new PenetranceCellWithId(inCellId);
-		penetranceCell.isBasisElement = true;
-		pendingCellsToSet.add(penetranceCell);
-		QUEUE: while ((currPenetranceCell = pendingCellsToSet.poll()) != null) {
-			// TODO: If we add a penetranceIsPending global array, we can avoid
-			// putting redundant entries in the queue in the first place.
-			if (!getPenetranceIsSet(currPenetranceCell.cellId)) {
-				assert (currPenetranceCell.isSet || currPenetranceCell.isBasisElement);
-				if (currPenetranceCell.isBasisElement) {
-					if (basisNext >= basisSize) {
-						outError = ErrorState.Ambiguous;
+		assert !PenetranceTable.getBit(cellIsSetBits, inMasterIndex) && (pendingCount == 0);
+		if (basisNext >= basisSize) {
+			return ErrorState.Ambiguous;
+		}
+		cellValues[inMasterIndex] = basis[basisNext].value;
+		PenetranceTable.setBit(cellIsSetBits, inMasterIndex);
+		PenetranceTable.setBit(cellIsBasisElementBits, inMasterIndex);
+		cellBasisElements[inMasterIndex] = basisNext;
+		basis[basisNext].whichPenetranceCell = inMasterIndex;
+		++basisNext;
+		markCellSet(inMasterIndex);
+
+		int currCell = inMasterIndex;
+		QUEUE: while (true) {
+			// Check each "row" in the snpCount-dimensional hypercube that
+			// goes through currCell:
+			// (currCell has already been added to the row counts.)
+			for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+				final int row = getRowIndex(currCell, whichDimension);
+				final int filledCells = rowFilledCounts[whichDimension][row];
+				// If the current row is all filled in, then check for a
+				// conflict. Don't bother trying to fix conflicts, it only
+				// works a small fraction of the time.
+				if (filledCells == snpStateCount) {
+					if (Math.abs(rowWeightedSums[whichDimension][row] - PenetranceTable.kPenetranceSum) > PenetranceTable.kErrorLimit) {
+						outError = ErrorState.Conflict;
 						break QUEUE;
 					}
-					currPenetranceCell.setValue(basis[basisNext].value);
-					currPenetranceCell.setWhichBasisElement(basisNext);
-					++basisNext;
 				}
-				savePenetranceCell(currPenetranceCell);
-				boolean foundError = false;
-				// Check each "row" in the snpCount-dimensional hypercube that
-				// goes through currPenetranceCell.cellId:
-				for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
-					// For each cell in the current "row" of the hypercube,
-					// count how many cells are set:
-					filledCells = countFilledCells(currPenetranceCell.cellId, whichDimension, emptyCellId);
-					// If the current row is all filled in, then check for a
-					// conflict:
-					if (filledCells == snpStateCount) {
-						sum = calculateWeightedSumOfSetPenetranceValues(currPenetranceCell.cellId, whichDimension);
-						if (Math.abs(sum - PenetranceTable.kPenetranceSum) > PenetranceTable.kErrorLimit) {
-							foundError = true;
-							// Don't bother trying to fix conflicts, it only
-							// works a small fraction of the time.
-							// if (!fixConflict(currPenetranceCell,
-							// whichDimension))
-							{
-								outError = ErrorState.Conflict;
-								break QUEUE;
-							}
-						}
-					}
 
-					// If there are snpStateCount - 1 cells set in the current
-					// row,
-					// then we can propagate to the remaining empty cell:
-					if (filledCells == (snpStateCount - 1)) {
-						assert (!getPenetranceIsSet(emptyCellId));
-						pendingCellsToSet.add(new PenetranceCellWithId(emptyCellId, calculateForcedPenetranceValue(emptyCellId,
-								whichDimension)));
-					}
-				}
-				if (foundError) {
-					if (!checkRowSums(0)) {
-						++PenetranceTable.fixedConflictUnsuccessfully;
-						outError = ErrorState.Conflict;
-						break QUEUE;
-					} else {
-						++PenetranceTable.fixedConflictSuccessfully;
+				// If there are snpStateCount - 1 cells set in the current
+				// row, then we can propagate to the remaining empty cell, whose
+				// index along the dimension is the one missing from the row's index sum:
+				if (filledCells == (snpStateCount - 1)) {
+					final int stride = strides[whichDimension];
+					final int emptyIndex = fullRowIndexSum - rowIndexSums[whichDimension][row];
+					final int emptyCell = (currCell - ((((currCell / stride) % snpStateCount)) * stride)) + (emptyIndex * stride);
+					if (!PenetranceTable.getBit(cellIsPendingBits, emptyCell)) {
+						enqueuePendingCell(emptyCell, (PenetranceTable.kPenetranceSum - rowWeightedSums[whichDimension][row])
+								/ stateProbability[whichDimension][emptyIndex]);
 					}
 				}
-
 			}
+			if (pendingCount == 0) {
+				break;
+			}
+			// Only this loop sets cells while the queue is non-empty, so a queued cell is still empty:
+			currCell = dequeuePendingCell();
+			assert !PenetranceTable.getBit(cellIsSetBits, currCell);
+			cellValues[currCell] = pendingValues[currCell];
+			PenetranceTable.setBit(cellIsSetBits, currCell);
+			PenetranceTable.clearBit(cellIsBasisElementBits, currCell);
+			markCellSet(currCell);
+		}
+		// Leave the queue empty for the next pick:
+		while (pendingCount > 0) {
+			dequeuePendingCell();
 		}
 		return outError;
 	}
 
+	// Every cell value has just been replaced by inScale * value + inOffset; each full row's weights sum to 1, so its weighted sum
+	// goes the same way.
+	private void transformRowWeightedSums(final double inScale, final double inOffset) {
+		if ((rowFilledCounts != null) && rowWeightedSumsAreCurrent && (filledCellCount == cellCount)) {
+			for (int whichDimension = 0; whichDimension < attributeCount; ++whichDimension) {
+				final double[] sums = rowWeightedSums[whichDimension];
+				for (int row = 0; row < sums.length; ++row) {
+					sums[row] = (inScale * sums[row]) + inOffset;
+				}
+			}
+		} else {
+			rowWeightedSumsAreCurrent = false;
+		}
+	}
+
 	public static void calcAlleleFrequencies(final double maf, final double[] outAlleleFrequencies) {
 		outAlleleFrequencies[0] = (1.0 - maf) * (1.0 - maf); // major-major
 		outAlleleFrequencies[1] = 2.0 * maf * (1.0 - maf); // major-minor
 		outAlleleFrequencies[2] = maf * maf; // minor-minor
 	}
 
+	// The largest number of attributes for which every cell of a table can be addressed by an int master index.
+	public static int getMaxAttributeCount(final int inSnpStateCount) {
+		int outMaxAttributeCount = 0;
+		long count = inSnpStateCount;
+		while (count <= Integer.MAX_VALUE) {
+			++outMaxAttributeCount;
+			count *= inSnpStateCount;
+		}
+		return outMaxAttributeCount;
+	}
+
+	// Read a table written by writeBinary().
+	public static PenetranceTable readBinary(final DataInput inStream) throws IOException {
+		final int snpStateCount = inStream.readInt();
+		final int attributeCount = inStream.readInt();
+		PenetranceTable.checkBinaryShape(snpStateCount, attributeCount);
+		final PenetranceTable outTable = new PenetranceTable(snpStateCount, attributeCount);
+		final String[] attributeNames = new String[attributeCount];
+		final double[] minorAlleleFrequencies = new double[attributeCount];
+		for (int i = 0; i < attributeCount; ++i) {
+			attributeNames[i] = inStream.readUTF();
+			minorAlleleFrequencies[i] = inStream.readDouble();
+		}
+		outTable.setAttributeNames(attributeNames);
+		outTable.setMinorAlleleFrequencies(minorAlleleFrequencies);
+		outTable.readBinaryValues(inStream);
+		return outTable;
+	}
+
+	// Throws if a stored table's shape is not one that a PenetranceTable can have.
+	static void checkBinaryShape(final int inSnpStateCount, final int inAttributeCount) throws IOException {
+		if ((inSnpStateCount < 2) || (inAttributeCount < 1) || (inAttributeCount > PenetranceTable.getMaxAttributeCount(inSnpStateCount))) {
+			throw new IOException("Invalid penetrance table shape: " + inAttributeCount + " attributes of " + inSnpStateCount + " states");
+		}
+	}
+
+	// The number of bytes that writeBinaryValues() writes for a table of inCellCount cells.
+	public static int getBinaryValuesByteCount(final int inCellCount) {
+		return ((inCellCount + 6) * 8) + 2;
+	}
+
+	private static int bitSetWordCount(final int inBitCount) {
+		return (inBitCount + 63) >>> 6;
+	}
+
+	private static void clearBit(final long[] ioBits, final int inIndex) {
+		ioBits[inIndex >>> 6] &= ~(1L << inIndex);
+	}
+
+	private static boolean getBit(final long[] inBits, final int inIndex) {
+		return (inBits[inIndex >>> 6] & (1L << inIndex)) != 0;
+	}
+
+	private static void setBit(final long[] ioBits, final int inIndex) {
+		ioBits[inIndex >>> 6] |= 1L << inIndex;
+	}
+
 	// The basis of a penetrance table is the set of independent parameters that
 	// are used to generate the table.
 	public static class BasisCell implements Cloneable {
@@ -1085,13 +1567,15 @@ public class PenetranceTable implements Cloneable {
 		// across squares.
 		public void fromMasterIndex(final int inSnpStateCount, final int inAttributeCount, final int inMasterIndex) {
 			int index;
-			assert ((0 <= inMasterIndex) && (inMasterIndex < (int) Math.round(Math.pow(inSnpStateCount, inAttributeCount))));
+			assert (0 <= inMasterIndex);
 			index = inMasterIndex;
 			for (int i = 0; i < inAttributeCount; ++i)
 			{
 				setIndex(i, index % inSnpStateCount);
 				index /= inSnpStateCount;
 			}
+			// Nothing is left over if inMasterIndex < inSnpStateCount^inAttributeCount:
+			assert (index == 0);
 		}
 
 		public int getIndex(final int inDimension) {
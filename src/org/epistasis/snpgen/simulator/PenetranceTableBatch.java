@@ -0,0 +1,157 @@
+package org.epistasis.snpgen.simulator;
+
+import java.util.Arrays;
+
+// A batch of unnormalized candidate penetrance tables of one shape, scored together. The tables' values are copied into one
+// contiguous (table count) x (cell count) matrix, and the sums that the fused normalization needs are accumulated for every table
+// in tiled loops: each tile of the shared cell probabilities is read once and used against every table's values for those cells.
+// The accumulation order for each table is the same as in PenetranceTable.prepareFusedNormalization(), so the results are
+// identical to scoring the tables one at a time.
+// The batch also owns the scratch tables that its candidates are generated in, so a search thread allocates them only once.
+public class PenetranceTableBatch {
+	// Number of cells in one tile of the scoring loops
+	private static final int kTileCellCount = 1024;
+	// Upper limit on the cells held by one batch, which bounds its memory (and its scratch tables') for models with many attributes
+	private static final int kMaxBatchCellCount = 1 << 18;
+
+	public final int attributeCount;
+	public final int cellCount;
+	public final int capacity;
+	private final GenotypeProbabilities genotypeProbabilities;
+	private final double[] cellProbabilities;
+	// The sums of the probabilities and of their squares are the same for every table:
+	private final double probabilitySum;
+	private final double squaredProbabilitySum;
+	private final PenetranceTable[] scratchTables;
+	private final double[] values;
+	private final double[] mins;
+	private final double[] maxes;
+	private final double[] sumsPV;
+	private final double[] sumsPVV;
+	private final double[] sumsPPV;
+	private final double[] sumsPPVV;
+	private final double[] unadjustedHeritabilities;
+	private int size;
+
+	public PenetranceTableBatch(final int inAttributeCount, final GenotypeProbabilities inGenotypeProbabilities, final int inMaxTableCount) {
+		assert inGenotypeProbabilities.attributeCount == inAttributeCount;
+		attributeCount = inAttributeCount;
+		genotypeProbabilities = inGenotypeProbabilities;
+		cellProbabilities = inGenotypeProbabilities.getCellProbabilities();
+		cellCount = inGenotypeProbabilities.cellCount;
+		capacity = Math.max(1, Math.min(inMaxTableCount, PenetranceTableBatch.kMaxBatchCellCount / cellCount));
+
+		double sumP = 0, sumPP = 0;
+		for (int i = 0; i < cellCount; ++i) {
+			final double prob = cellProbabilities[i];
+			sumP += prob;
+			sumPP += prob * prob;
+		}
+		probabilitySum = sumP;
+		squaredProbabilitySum = sumPP;
+
+		scratchTables = new PenetranceTable[capacity];
+		values = new double[capacity * cellCount];
+		mins = new double[capacity];
+		maxes = new double[capacity];
+		sumsPV = new double[capacity];
+		sumsPVV = new double[capacity];
+		sumsPPV = new double[capacity];
+		sumsPPVV = new double[capacity];
+		unadjustedHeritabilities = new double[capacity];
+		size = 0;
+	}
+
+	// Add a fully generated, unnormalized table. It must be the table last returned by nextScratchTable().
+	public void add(final PenetranceTable inTable) {
+		assert (size < capacity) && (inTable == scratchTables[size]);
+		inTable.copyPenetranceValues(values, size * cellCount);
+		++size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	// Score every table in the batch: afterwards each table is ready for PenetranceTable.applyFusedNormalization(), exactly as if
+	// prepareFusedNormalization() had been called on it, and getUnadjustedHeritability() returns what that would have returned.
+	public void evaluate() {
+		for (int whichTable = 0; whichTable < size; ++whichTable) {
+			mins[whichTable] = values[whichTable * cellCount];
+			maxes[whichTable] = values[whichTable * cellCount];
+		}
+		Arrays.fill(sumsPV, 0, size, 0);
+		Arrays.fill(sumsPVV, 0, size, 0);
+		Arrays.fill(sumsPPV, 0, size, 0);
+		Arrays.fill(sumsPPVV, 0, size, 0);
+
+		for (int tileStart = 0; tileStart < cellCount; tileStart += PenetranceTableBatch.kTileCellCount) {
+			final int tileEnd = Math.min(tileStart + PenetranceTableBatch.kTileCellCount, cellCount);
+			for (int whichTable = 0; whichTable < size; ++whichTable) {
+				final int rowOffset = whichTable * cellCount;
+				double min = mins[whichTable];
+				double max = maxes[whichTable];
+				double sumPV = sumsPV[whichTable];
+				double sumPVV = sumsPVV[whichTable];
+				double sumPPV = sumsPPV[whichTable];
+				double sumPPVV = sumsPPVV[whichTable];
+				for (int i = tileStart; i < tileEnd; ++i) {
+					final double value = values[rowOffset + i];
+					final double prob = cellProbabilities[i];
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+					final double pv = prob * value;
+					final double ppv = prob * pv;
+					sumPV += pv;
+					sumPVV += pv * value;
+					sumPPV += ppv;
+					sumPPVV += ppv * value;
+				}
+				mins[whichTable] = min;
+				maxes[whichTable] = max;
+				sumsPV[whichTable] = sumPV;
+				sumsPVV[whichTable] = sumPVV;
+				sumsPPV[whichTable] = sumPPV;
+				sumsPPVV[whichTable] = sumPPVV;
+			}
+		}
+
+		for (int whichTable = 0; whichTable < size; ++whichTable) {
+			unadjustedHeritabilities[whichTable] = scratchTables[whichTable].completeFusedNormalization(mins[whichTable], maxes[whichTable],
+					probabilitySum, sumsPV[whichTable], sumsPVV[whichTable], squaredProbabilitySum, sumsPPV[whichTable], sumsPPVV[whichTable]);
+		}
+	}
+
+	public PenetranceTable getTable(final int inWhichTable) {
+		assert inWhichTable < size;
+		return scratchTables[inWhichTable];
+	}
+
+	public double getUnadjustedHeritability(final int inWhichTable) {
+		assert inWhichTable < size;
+		return unadjustedHeritabilities[inWhichTable];
+	}
+
+	public boolean isFull() {
+		return size >= capacity;
+	}
+
+	public boolean matches(final int inAttributeCount, final GenotypeProbabilities inGenotypeProbabilities) {
+		return (attributeCount == inAttributeCount) && (genotypeProbabilities == inGenotypeProbabilities);
+	}
+
+	// Returns a reset scratch table to generate the next candidate in. Unless it is then add()ed, the next call returns it again.
+	public PenetranceTable nextScratchTable() {
+		assert size < capacity;
+		if (scratchTables[size] == null) {
+			scratchTables[size] = new PenetranceTable(3, attributeCount);
+		} else {
+			scratchTables[size].reset();
+		}
+		return scratchTables[size];
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,187 @@
+package org.epistasis.snpgen.simulator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+// The table population of one model. For each accepted table it records, in primitive arrays, the seed of the search try that
+// generated it and its EDM and odds ratio, and, if keepsTables, the table itself. A table that is not kept can be regenerated
+// exactly by replaying its try's seed, so a population that keeps only scores takes the same memory however large its tables are.
+public class PenetranceTablePopulation {
+	private static final int kInitialCapacity = 16;
+
+	public final boolean keepsTables;
+	private int size;
+	private long[] trySeeds;
+	private double[] edms;
+	private double[] oddsRatios;
+	private PenetranceTable[] tables;
+	// See coversQuantileTargets()
+	private boolean coversTargets;
+	private int nextCoverageCheckSize;
+
+	public PenetranceTablePopulation(final boolean inKeepsTables) {
+		keepsTables = inKeepsTables;
+		size = 0;
+		trySeeds = new long[PenetranceTablePopulation.kInitialCapacity];
+		edms = new double[PenetranceTablePopulation.kInitialCapacity];
+		oddsRatios = new double[PenetranceTablePopulation.kInitialCapacity];
+		tables = inKeepsTables ? new PenetranceTable[PenetranceTablePopulation.kInitialCapacity] : null;
+		coversTargets = false;
+		nextCoverageCheckSize = 0;
+	}
+
+	// Add a normalized table, generated by the try whose Random was seeded with inTrySeed. Unless keepsTables, only its scores are kept.
+	public void add(final PenetranceTable inTable, final long inTrySeed) {
+		add(inTrySeed, inTable.edm, inTable.oddsRatio, keepsTables ? inTable : null);
+	}
+
+	// Whether each of inQuantileCount targets (see SnpGenSimulator.calcQuantileTargets()) has a table whose score is within
+	// inTolerance, as a fraction of the population's score range, of it. Once true it stays true, since the search adds no more tables
+	// then. Checking sorts the scores, so a population is only rechecked once it has grown by an eighth since its last check.
+	public boolean coversQuantileTargets(final int inQuantileCount, final double inTolerance, final boolean inUseOddsRatio) {
+		if (!coversTargets && (size >= Math.max(inQuantileCount, nextCoverageCheckSize))) {
+			nextCoverageCheckSize = size + Math.max(1, size / 8);
+			final double[] sortedScores = getQuantileScores(inUseOddsRatio);
+			Arrays.sort(sortedScores);
+			final double tolerance = inTolerance * (sortedScores[size - 1] - sortedScores[0]);
+			boolean covers = true;
+			for (final double target : SnpGenSimulator.calcQuantileTargets(sortedScores, inQuantileCount)) {
+				final int found = Arrays.binarySearch(sortedScores, target);
+				if (found < 0) {
+					// The nearest scores are the ones on either side of the target's insertion point:
+					final int insertionPoint = -found - 1;
+					double distance = Double.POSITIVE_INFINITY;
+					if (insertionPoint > 0) {
+						distance = target - sortedScores[insertionPoint - 1];
+					}
+					if (insertionPoint < size) {
+						distance = Math.min(distance, sortedScores[insertionPoint] - target);
+					}
+					if (distance > tolerance) {
+						covers = false;
+						break;
+					}
+				}
+			}
+			coversTargets = covers;
+		}
+		return coversTargets;
+	}
+
+	public double[] getQuantileScores(final boolean inUseOddsRatio) {
+		return Arrays.copyOf(inUseOddsRatio ? oddsRatios : edms, size);
+	}
+
+	public PenetranceTable getTable(final int inWhichTable) {
+		assert keepsTables && (inWhichTable < size);
+		return tables[inWhichTable];
+	}
+
+	public long getTrySeed(final int inWhichTable) {
+		assert inWhichTable < size;
+		return trySeeds[inWhichTable];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// Sort the population by quantile score. Tables with equal scores stay in the order they were added, as they do when the tables
+	// themselves are sorted with PenetranceTable.PenetranceTableComparatorEdm or PenetranceTableComparatorOddsRatio.
+	public void sort(final boolean inUseOddsRatio) {
+		final double[] scores = inUseOddsRatio ? oddsRatios : edms;
+		final Integer[] order = new Integer[size];
+		for (int i = 0; i < size; ++i) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer in1, final Integer in2) {
+				final double score1 = scores[in1];
+				final double score2 = scores[in2];
+				if (score1 < score2) {
+					return -1;
+				} else if (score1 > score2) {
+					return 1;
+				} else {
+					return 0;
+				}
+			}
+		});
+
+		final long[] sortedTrySeeds = new long[trySeeds.length];
+		final double[] sortedEdms = new double[edms.length];
+		final double[] sortedOddsRatios = new double[oddsRatios.length];
+		final PenetranceTable[] sortedTables = keepsTables ? new PenetranceTable[tables.length] : null;
+		for (int i = 0; i < size; ++i) {
+			final int from = order[i];
+			sortedTrySeeds[i] = trySeeds[from];
+			sortedEdms[i] = edms[from];
+			sortedOddsRatios[i] = oddsRatios[from];
+			if (keepsTables) {
+				sortedTables[i] = tables[from];
+			}
+		}
+		trySeeds = sortedTrySeeds;
+		edms = sortedEdms;
+		oddsRatios = sortedOddsRatios;
+		tables = sortedTables;
+	}
+
+	// Write the population exactly, in the order its tables were added, for readBinary().
+	public void writeBinary(final DataOutput outStream) throws IOException {
+		outStream.writeBoolean(keepsTables);
+		outStream.writeInt(size);
+		outStream.writeBoolean(coversTargets);
+		outStream.writeInt(nextCoverageCheckSize);
+		for (int i = 0; i < size; ++i) {
+			outStream.writeLong(trySeeds[i]);
+			outStream.writeDouble(edms[i]);
+			outStream.writeDouble(oddsRatios[i]);
+			if (keepsTables) {
+				tables[i].writeBinary(outStream);
+			}
+		}
+	}
+
+	private void add(final long inTrySeed, final double inEdm, final double inOddsRatio, final PenetranceTable inTable) {
+		if (size == trySeeds.length) {
+			final int capacity = 2 * size;
+			trySeeds = Arrays.copyOf(trySeeds, capacity);
+			edms = Arrays.copyOf(edms, capacity);
+			oddsRatios = Arrays.copyOf(oddsRatios, capacity);
+			if (keepsTables) {
+				tables = Arrays.copyOf(tables, capacity);
+			}
+		}
+		trySeeds[size] = inTrySeed;
+		edms[size] = inEdm;
+		oddsRatios[size] = inOddsRatio;
+		if (keepsTables) {
+			tables[size] = inTable;
+		}
+		++size;
+	}
+
+	// Read a population written by writeBinary(); adding to it continues as adding to the written population would have.
+	public static PenetranceTablePopulation readBinary(final DataInput inStream) throws IOException {
+		final PenetranceTablePopulation outPopulation = new PenetranceTablePopulation(inStream.readBoolean());
+		final int size = inStream.readInt();
+		if (size < 0) {
+			throw new IOException("Invalid penetrance table population size " + size);
+		}
+		outPopulation.coversTargets = inStream.readBoolean();
+		outPopulation.nextCoverageCheckSize = inStream.readInt();
+		for (int i = 0; i < size; ++i) {
+			final long trySeed = inStream.readLong();
+			final double edm = inStream.readDouble();
+			final double oddsRatio = inStream.readDouble();
+			final PenetranceTable table = outPopulation.keepsTables ? PenetranceTable.readBinary(inStream) : null;
+			outPopulation.add(trySeed, edm, oddsRatio, table);
+		}
+		return outPopulation;
+	}
+}
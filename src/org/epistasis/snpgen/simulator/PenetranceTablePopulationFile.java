@@ -0,0 +1,152 @@
+package org.epistasis.snpgen.simulator;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+// A model's whole table population, saved in a compact binary file so that quantiles can be selected from it again (see
+// SnpGenSimulator.selectFromPopulationFiles()) without searching for the tables again. The file has a header with the tables' shared
+// attributes, then each table's try seed, EDM and odds ratio in three arrays, then each table's values and scores as a fixed-size
+// record (see PenetranceTable.writeBinaryValues()), all in the population's sorted order. Opening a file reads only the header and
+// scores, and readTable() reads a single record, so selecting from a large population reads little more than its scores.
+public class PenetranceTablePopulationFile {
+	// "GMTP", and the file format version
+	private static final int kMagic = 0x474D5450;
+	private static final int kVersion = 1;
+
+	public final File file;
+	// Which score the population is sorted by
+	public final boolean useOddsRatio;
+	public final int snpStateCount;
+	public final int attributeCount;
+	private final String[] attributeNames;
+	private final double[] minorAlleleFrequencies;
+	private final long[] trySeeds;
+	private final double[] edms;
+	private final double[] oddsRatios;
+	private final long recordsOffset;
+	private final int recordByteCount;
+	private GenotypeProbabilities genotypeProbabilities;
+
+	// Read the header and scores of the population file inFile.
+	public PenetranceTablePopulationFile(final File inFile) throws IOException {
+		file = inFile;
+		try (RandomAccessFile stream = new RandomAccessFile(inFile, "r");) {
+			if ((stream.readInt() != PenetranceTablePopulationFile.kMagic) || (stream.readInt() != PenetranceTablePopulationFile.kVersion)) {
+				throw new IOException(inFile + " is not a penetrance table population file");
+			}
+			useOddsRatio = stream.readBoolean();
+			snpStateCount = stream.readInt();
+			attributeCount = stream.readInt();
+			PenetranceTable.checkBinaryShape(snpStateCount, attributeCount);
+			attributeNames = new String[attributeCount];
+			minorAlleleFrequencies = new double[attributeCount];
+			for (int i = 0; i < attributeCount; ++i) {
+				attributeNames[i] = stream.readUTF();
+				minorAlleleFrequencies[i] = stream.readDouble();
+			}
+			final int size = stream.readInt();
+			if ((size < 0) || (((long) size * 24) > (stream.length() - stream.getFilePointer()))) {
+				throw new IOException("Invalid penetrance table population size " + size + " in " + inFile);
+			}
+			// The score arrays are read whole, rather than a value at a time from the unbuffered file:
+			final byte[] scoreBytes = new byte[size * 24];
+			stream.readFully(scoreBytes);
+			final ByteBuffer scoreBuffer = ByteBuffer.wrap(scoreBytes);
+			trySeeds = new long[size];
+			edms = new double[size];
+			oddsRatios = new double[size];
+			scoreBuffer.asLongBuffer().get(trySeeds);
+			scoreBuffer.position(size * 8);
+			scoreBuffer.asDoubleBuffer().get(edms);
+			scoreBuffer.position(size * 16);
+			scoreBuffer.asDoubleBuffer().get(oddsRatios);
+			recordsOffset = stream.getFilePointer();
+		}
+		final int cellCount = (int) Math.pow(snpStateCount, attributeCount);
+		recordByteCount = PenetranceTable.getBinaryValuesByteCount(cellCount);
+		if (inFile.length() != (recordsOffset + ((long) recordByteCount * edms.length))) {
+			throw new IOException("The penetrance table population file " + inFile + " is truncated or damaged");
+		}
+	}
+
+	public String[] getAttributeNames() {
+		return attributeNames.clone();
+	}
+
+	public double[] getMinorAlleleFrequencies() {
+		return minorAlleleFrequencies.clone();
+	}
+
+	// The scores the population is sorted by, in order
+	public double[] getQuantileScores() {
+		return (useOddsRatio ? oddsRatios : edms).clone();
+	}
+
+	public long getTrySeed(final int inWhichTable) {
+		return trySeeds[inWhichTable];
+	}
+
+	// Read the inWhichTable'th table of the population.
+	public PenetranceTable readTable(final int inWhichTable) throws IOException {
+		final byte[] record = new byte[recordByteCount];
+		try (RandomAccessFile stream = new RandomAccessFile(file, "r");) {
+			stream.seek(recordsOffset + ((long) recordByteCount * inWhichTable));
+			stream.readFully(record);
+		}
+		final PenetranceTable outTable = new PenetranceTable(snpStateCount, attributeCount);
+		outTable.setAttributeNames(getAttributeNames());
+		// The tables read share their genotype probabilities:
+		if (genotypeProbabilities == null) {
+			outTable.setMinorAlleleFrequencies(minorAlleleFrequencies);
+			genotypeProbabilities = outTable.getGenotypeProbabilities();
+		} else {
+			outTable.setGenotypeProbabilities(genotypeProbabilities);
+		}
+		outTable.readBinaryValues(new DataInputStream(new ByteArrayInputStream(record)));
+		return outTable;
+	}
+
+	public int size() {
+		return edms.length;
+	}
+
+	// Write inPopulation, which must keep its tables and be sorted by the score that inUseOddsRatio chooses, to inFile.
+	public static void write(final File inFile, final PenetranceTablePopulation inPopulation, final boolean inUseOddsRatio)
+			throws IOException {
+		assert inPopulation.keepsTables && (inPopulation.size() > 0);
+		final PenetranceTable firstTable = inPopulation.getTable(0);
+		final int size = inPopulation.size();
+		try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(inFile)));) {
+			stream.writeInt(PenetranceTablePopulationFile.kMagic);
+			stream.writeInt(PenetranceTablePopulationFile.kVersion);
+			stream.writeBoolean(inUseOddsRatio);
+			stream.writeInt(firstTable.snpStateCount);
+			stream.writeInt(firstTable.attributeCount);
+			final String[] attributeNames = firstTable.getAttributeNames();
+			for (int i = 0; i < firstTable.attributeCount; ++i) {
+				stream.writeUTF(attributeNames[i]);
+				stream.writeDouble(firstTable.minorAlleleFrequencies[i]);
+			}
+			stream.writeInt(size);
+			for (int i = 0; i < size; ++i) {
+				stream.writeLong(inPopulation.getTrySeed(i));
+			}
+			for (final double edm : inPopulation.getQuantileScores(false)) {
+				stream.writeDouble(edm);
+			}
+			for (final double oddsRatio : inPopulation.getQuantileScores(true)) {
+				stream.writeDouble(oddsRatio);
+			}
+			for (int i = 0; i < size; ++i) {
+				inPopulation.getTable(i).writeBinaryValues(stream);
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.epistasis.snpgen.simulator;
+
+
+// Moves a normalized penetrance table towards a target EDM (or odds ratio) by hill climbing in the coordinates of the null-space
+// basis (see NullSpaceTableGenerator). A table's unnormalized values, less its prevalence, have zero weighted row sums, so they are
+// a combination of the basis tables. Each step perturbs the current coordinates with a random Gaussian vector, rebuilds the table
+// from them and normalizes it to the model's heritability (and prevalence, if one was asked for); the step is kept if its score is
+// closer to the target. The step size grows after a success and shrinks after a failure, as in a (1+1) evolution strategy.
+// Every table evaluated therefore has the model's heritability and valid row sums; only its score changes.
+public class QuantileTargetOptimizer {
+	// Largest number of tables evaluated for one target
+	private static final int kMaxEvaluationCount = 2000;
+	private static final double kInitialStepSize = 0.1;
+	private static final double kMinStepSize = 1e-4;
+	private static final double kMaxStepSize = 1;
+	private static final double kStepGrowth = 1.5;
+	private static final double kStepShrinkage = 0.9;
+
+	private final NullSpaceTableGenerator generator;
+	private final boolean useOddsRatio;
+	private final double[] coefficients;
+	private final double[] candidateCoefficients;
+	private final double[] values;
+	private final double[] scratch1;
+	private final double[] scratch2;
+	// The number of tables evaluated by the last call of optimize()
+	public int evaluationCount;
+
+	public QuantileTargetOptimizer(final GenotypeProbabilities inGenotypeProbabilities, final boolean inUseOddsRatio) {
+		generator = new NullSpaceTableGenerator(inGenotypeProbabilities);
+		useOddsRatio = inUseOddsRatio;
+		coefficients = new double[generator.basisSize];
+		candidateCoefficients = new double[generator.basisSize];
+		values = new double[generator.cellCount];
+		scratch1 = new double[generator.cellCount];
+		scratch2 = new double[generator.cellCount];
+	}
+
+	// Returns a table with the same heritability as inTable (which must be normalized to inHeritability) whose quantile score is
+	// within inTolerance of inTargetScore, or, if none was found, the table closest to it; that is inTable itself if no step improved
+	// on it.
+	public PenetranceTable optimize(final PenetranceTable inTable, final double inHeritability, final double inTargetScore,
+			final double inTolerance, final RandomSource inRandom) throws CloneNotSupportedException {
+		evaluationCount = 0;
+		double bestDistance = Math.abs(inTable.getQuantileScore(useOddsRatio) - inTargetScore);
+		if (bestDistance <= inTolerance) {
+			return inTable;
+		}
+
+		// The starting coordinates, of the table's values less its prevalence; their scale does not matter, since normalization
+		// rescales the values:
+		inTable.copyPenetranceValues(values, 0);
+		for (int i = 0; i < values.length; ++i) {
+			values[i] -= inTable.prevalence;
+		}
+		generator.project(values, coefficients, scratch1, scratch2);
+		QuantileTargetOptimizer.normalizeVector(coefficients);
+
+		final PenetranceTable work = (PenetranceTable) inTable.clone();
+		boolean improved = false;
+		double stepSize = QuantileTargetOptimizer.kInitialStepSize;
+		while ((bestDistance > inTolerance) && (evaluationCount < QuantileTargetOptimizer.kMaxEvaluationCount)) {
+			for (int i = 0; i < coefficients.length; ++i) {
+				candidateCoefficients[i] = coefficients[i] + (stepSize * inRandom.nextGaussian());
+			}
+			QuantileTargetOptimizer.normalizeVector(candidateCoefficients);
+			final double score = evaluate(work, candidateCoefficients, inHeritability);
+			final double distance = Math.abs(score - inTargetScore);
+			// (A NaN score, from a table that cannot be normalized, is never closer)
+			if (distance < bestDistance) {
+				System.arraycopy(candidateCoefficients, 0, coefficients, 0, coefficients.length);
+				bestDistance = distance;
+				improved = true;
+				stepSize = Math.min(QuantileTargetOptimizer.kMaxStepSize, stepSize * QuantileTargetOptimizer.kStepGrowth);
+			} else {
+				stepSize = Math.max(QuantileTargetOptimizer.kMinStepSize, stepSize * QuantileTargetOptimizer.kStepShrinkage);
+			}
+		}
+		if (!improved) {
+			return inTable;
+		}
+		evaluate(work, coefficients, inHeritability);
+		return work;
+	}
+
+	// Make ioTable the table with the given null-space coordinates, normalized to inHeritability; returns its quantile score, or NaN
+	// if it cannot be normalized to that heritability or fails the row-sum test.
+	private double evaluate(final PenetranceTable ioTable, final double[] inCoefficients, final double inHeritability) {
+		++evaluationCount;
+		generator.generate(inCoefficients, values, scratch1);
+		ioTable.setPenetranceValues(values);
+		final double herit = ioTable.prepareFusedNormalization();
+		if (Math.sqrt(inHeritability / herit) > 1.0D) {
+			return Double.NaN;
+		}
+		ioTable.applyFusedNormalization(inHeritability);
+		if (!ioTable.normalized) {
+			return Double.NaN;
+		}
+		ioTable.checkRowSums();
+		if (!ioTable.rowSumsValid) {
+			return Double.NaN;
+		}
+		return ioTable.getQuantileScore(useOddsRatio);
+	}
+
+	private static void normalizeVector(final double[] ioVector) {
+		double squaredSum = 0;
+		for (final double value : ioVector) {
+			squaredSum += value * value;
+		}
+		final double normalizingFactor = 1 / Math.sqrt(squaredSum);
+		for (int i = 0; i < ioVector.length; ++i) {
+			ioVector[i] *= normalizingFactor;
+		}
+	}
+}
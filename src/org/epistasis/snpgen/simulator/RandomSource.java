@@ -0,0 +1,161 @@
+package org.epistasis.snpgen.simulator;
+
+import java.util.Random;
+
+import org.epistasis.snpgen.document.SnpGenDocument;
+
+// The random number generators that models and datasets are generated from. A RandomSource is a java.util.Random, so it has all of
+// Random's methods, and this class itself is the legacy engine, java.util.Random's 48-bit linear congruential generator, which draws
+// the same numbers for a given seed as earlier versions did; their models also need SnpGenDocument.legacyModelGeneration, since by
+// default the tables are generated from the numbers differently. Its subclasses are faster engines with better statistics, which
+// keep their state in plain fields rather than an AtomicLong, so a source must not be shared between threads; the simulator gives
+// each thread its own. create() makes a source of the engine that the document asks for (see SnpGenDocument.RANDOM_ENGINE).
+// The subclasses' state is set by setSeed(), which Random's constructors call, so their fields must not have initializers.
+public class RandomSource extends Random {
+	private static final long serialVersionUID = 1L;
+	// The increment of the SplitMix64 Weyl sequence (the golden ratio in 64 bits)
+	private static final long kGoldenGamma = 0x9E3779B97F4A7C15L;
+	// 2^-53, to turn 53 random bits into a double in [0, 1)
+	private static final double kDoubleUnit = 1.0 / (1L << 53);
+
+	public RandomSource() {
+		super();
+	}
+
+	public RandomSource(final long inSeed) {
+		super(inSeed);
+	}
+
+	// Returns a source of inEngine seeded with inSeed.
+	public static RandomSource create(final SnpGenDocument.RANDOM_ENGINE inEngine, final long inSeed) {
+		if (inEngine == SnpGenDocument.RANDOM_ENGINE.splitMix64) {
+			return new SplitMix64(inSeed);
+		} else if (inEngine == SnpGenDocument.RANDOM_ENGINE.xoshiro256StarStar) {
+			return new Xoshiro256StarStar(inSeed);
+		} else {
+			return new RandomSource(inSeed);
+		}
+	}
+
+	// Returns a source of inEngine with a seed that is different for every source.
+	public static RandomSource create(final SnpGenDocument.RANDOM_ENGINE inEngine) {
+		if (inEngine == SnpGenDocument.RANDOM_ENGINE.splitMix64) {
+			return new SplitMix64();
+		} else if (inEngine == SnpGenDocument.RANDOM_ENGINE.xoshiro256StarStar) {
+			return new Xoshiro256StarStar();
+		} else {
+			return new RandomSource();
+		}
+	}
+
+	// The SplitMix64 finalizer, which mixes the bits of inValue so that every output bit depends on every input bit.
+	static long mix64(final long inValue) {
+		long z = inValue;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	// A source whose engine makes 64 random bits at a time: the narrower results of Random's methods are taken from the high bits of
+	// nextLong(), and nextDouble() from 53 of them, rather than from two 32-bit numbers as Random does.
+	private abstract static class LongSource extends RandomSource {
+		private static final long serialVersionUID = 1L;
+
+		public LongSource() {
+			super();
+		}
+
+		public LongSource(final long inSeed) {
+			super(inSeed);
+		}
+
+		@Override
+		public abstract long nextLong();
+
+		@Override
+		public boolean nextBoolean() {
+			return nextLong() < 0;
+		}
+
+		@Override
+		public double nextDouble() {
+			return (nextLong() >>> 11) * RandomSource.kDoubleUnit;
+		}
+
+		@Override
+		public int nextInt() {
+			return (int) (nextLong() >>> 32);
+		}
+
+		@Override
+		protected int next(final int inBitCount) {
+			return (int) (nextLong() >>> (64 - inBitCount));
+		}
+	}
+
+	// Steele, Lea and Flood's SplitMix64: the SplitMix64 finalizer applied to a Weyl sequence, with a period of 2^64.
+	public static class SplitMix64 extends LongSource {
+		private static final long serialVersionUID = 1L;
+		private long state;
+
+		public SplitMix64() {
+			super();
+		}
+
+		public SplitMix64(final long inSeed) {
+			super(inSeed);
+		}
+
+		@Override
+		public long nextLong() {
+			state += RandomSource.kGoldenGamma;
+			return RandomSource.mix64(state);
+		}
+
+		@Override
+		public synchronized void setSeed(final long inSeed) {
+			super.setSeed(inSeed);
+			state = inSeed;
+		}
+	}
+
+	// Blackman and Vigna's xoshiro256**, with a period of 2^256 - 1. Its 256 bits of state are filled from the seed by SplitMix64,
+	// as its authors recommend, so they are never all zero.
+	public static class Xoshiro256StarStar extends LongSource {
+		private static final long serialVersionUID = 1L;
+		private long state0;
+		private long state1;
+		private long state2;
+		private long state3;
+
+		public Xoshiro256StarStar() {
+			super();
+		}
+
+		public Xoshiro256StarStar(final long inSeed) {
+			super(inSeed);
+		}
+
+		@Override
+		public long nextLong() {
+			final long outValue = Long.rotateLeft(state1 * 5, 7) * 9;
+			final long shifted = state1 << 17;
+			state2 ^= state0;
+			state3 ^= state1;
+			state1 ^= state2;
+			state0 ^= state3;
+			state2 ^= shifted;
+			state3 = Long.rotateLeft(state3, 45);
+			return outValue;
+		}
+
+		@Override
+		public synchronized void setSeed(final long inSeed) {
+			super.setSeed(inSeed);
+			state0 = RandomSource.mix64(inSeed + RandomSource.kGoldenGamma);
+			state1 = RandomSource.mix64(inSeed + (2 * RandomSource.kGoldenGamma));
+			state2 = RandomSource.mix64(inSeed + (3 * RandomSource.kGoldenGamma));
+			state3 = RandomSource.mix64(inSeed + (4 * RandomSource.kGoldenGamma));
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package org.epistasis.snpgen.simulator;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -10,13 +11,17 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.epistasis.snpgen.document.SnpGenDocument;
 import org.epistasis.snpgen.document.SnpGenDocument.DocDataset;
 import org.epistasis.snpgen.document.SnpGenDocument.DocModel;
 import org.epistasis.snpgen.exception.InputException;
 import org.epistasis.snpgen.exception.ProcessingException;
+import org.epistasis.snpgen.simulator.ModelGenerationStatistics.TryOutcome;
 
 public class SnpGenSimulator {
 	private static final double kErrorLimit = 0.01D;
@@ -27,8 +32,23 @@ public class SnpGenSimulator {
 	private static final String kAttributeToken = "Attribute names:";
 	private static final String kFrequencyToken = "Minor allele frequencies:";
 	private static final String kTableToken = "Table:";
-
-	private final Random random = new Random();
+	// Largest number of consecutive tries handled by one task of the parallel model search
+	private static final int kTriesPerSearchTask = 64;
+	// Number of search tasks queued per thread before the accepted tables are collected
+	private static final int kSearchTasksPerThread = 4;
+	// Upper limit on the cells of the tables tried by one search task; tasks for models with many attributes get fewer tries, which
+	// bounds the memory held by each thread's scratch tables and by a batch's accepted tables until they are collected
+	private static final int kMaxSearchTaskCellCount = 1 << 18;
+	// Mixed into the random seed for the quantile optimizer's streams, to keep them apart from the model search's
+	private static final long kQuantileOptimizerSeedSalt = 0x5DEECE66DL;
+	// Mixed into the random seed to seed the replicates of parallel dataset generation (see generateDatasets()):
+	private static final long kDatasetSeedSalt = 0x2545F4914F6CDD1DL;
+	// Each thread's model-search tries all work in the same table; only accepted tables are copied out of it.
+	private static final ThreadLocal<PenetranceTable> scratchPenetranceTable = new ThreadLocal<PenetranceTable>();
+	// The parallel search's threads generate and score their tries in batches instead:
+	private static final ThreadLocal<PenetranceTableBatch> scratchPenetranceTableBatch = new ThreadLocal<PenetranceTableBatch>();
+
+	private RandomSource random = new RandomSource();
 	private PenetranceTableQuantile[] penetranceTableQuantiles;
 	private SnpGenDocument document;
 	private int tablePopulationCountFound;
@@ -114,6 +134,11 @@ public class SnpGenSimulator {
 	// model #; containing files named by model-name, population size, and
 	// replicate #
 	// Example: parent-directory/100/400/Model10/Model10.400.007
+	// Generate and save every replicate of each dataset for each quantile. If the document has a datasetThreadCount, the replicates
+	// are generated on that many threads, each from its own Random seeded from the random seed and the replicate's dataset, quantile
+	// and number, and each from its own copy of the quantile's tables, so the datasets do not depend on the number of threads; the
+	// progress is still reported in replicate order. Otherwise the replicates are generated one after another from a single Random, as
+	// in earlier versions.
 	public void generateDatasets(final ProgressHandler inProgressHandler) throws Exception {
 		String destFilename;
 		File destFile;
@@ -126,7 +151,7 @@ public class SnpGenSimulator {
 		int[][] noiseDataset;
 		int fileCount;
 
-		setRandomSeed(document.randomSeed);
+		random = createRandomSource(document.randomSeed);
 		if ((ex = document.verifyDatasetParameters()) != null) {
 			throw ex;
 		}
@@ -153,55 +178,82 @@ public class SnpGenSimulator {
 		}
 		fileCount = 0;
 		final boolean createDirectories = (document.datasetList.size() > 1);
-		for (final DocDataset dd : document.datasetList) {
-			destFilename = null;
-			directory = null;
-			destFile = dd.outputFile;
-			if (destFile != null) {
-				if (createDirectories) {
-					directory = destFile;
-					directory.mkdirs();
-				} else {
-					directory = destFile.getParentFile();
+		final Integer threadCount = document.datasetThreadCount;
+		final ForkJoinPool pool = (threadCount == null) ? null : new ForkJoinPool(threadCount);
+		try {
+			final long datasetSeed = (threadCount == null) ? 0 : ((document.randomSeed == null) ? random.nextLong() : document.randomSeed)
+					^ SnpGenSimulator.kDatasetSeedSalt;
+			final List<Future<int[][]>> futures = new ArrayList<Future<int[][]>>();
+			for (int whichDocDataset = 0; whichDocDataset < document.datasetList.size(); ++whichDocDataset) {
+				final DocDataset dd = document.datasetList.get(whichDocDataset);
+				destFilename = null;
+				directory = null;
+				destFile = dd.outputFile;
+				if (destFile != null) {
+					if (createDirectories) {
+						directory = destFile;
+						directory.mkdirs();
+					} else {
+						directory = destFile.getParentFile();
+					}
+					destFilename = destFile.getName();
 				}
-				destFilename = destFile.getName();
-			}
 
-			if (noiseDataset != null) {
-				datasetIterationCount = 1; // If the noise comes from a file
-				// then we only do one replicate
-			}
-
-			final int maxQuantileNumberLength = (new Integer(penetranceTableQuantiles.length)).toString().length();
-			datasetIterationCount = dd.replicateCount.getInteger();
-			final int maxDatasetNumberLength = (new Integer(datasetIterationCount)).toString().length();
-			for (int whichQuantile = 0; whichQuantile < penetranceTableQuantiles.length; ++whichQuantile) {
-				final PenetranceTableQuantile q = penetranceTableQuantiles[whichQuantile];
-				String quantileName = (new Integer(whichQuantile + 1)).toString();
-				quantileName = "0000000000".substring(0, maxQuantileNumberLength - quantileName.length()) + quantileName;
-				if (destFilename != null) {
-					subdirectory = new File(directory, destFilename + "_EDM-" + quantileName);
-					subdirectory.mkdirs();
+				if (noiseDataset != null) {
+					datasetIterationCount = 1; // If the noise comes from a file
+					// then we only do one replicate
 				}
-				for (int whichDataset = 0; whichDataset < datasetIterationCount; ++whichDataset) {
-					String datasetName = (new Integer(whichDataset + 1)).toString();
-					datasetName = "0000000000".substring(0, maxDatasetNumberLength - datasetName.length()) + datasetName;
+
+				final int maxQuantileNumberLength = (new Integer(penetranceTableQuantiles.length)).toString().length();
+				datasetIterationCount = dd.replicateCount.getInteger();
+				final int maxDatasetNumberLength = (new Integer(datasetIterationCount)).toString().length();
+				for (int whichQuantile = 0; whichQuantile < penetranceTableQuantiles.length; ++whichQuantile) {
+					final PenetranceTableQuantile q = penetranceTableQuantiles[whichQuantile];
+					String quantileName = (new Integer(whichQuantile + 1)).toString();
+					quantileName = "0000000000".substring(0, maxQuantileNumberLength - quantileName.length()) + quantileName;
 					if (destFilename != null) {
-						datasetFile = new File(subdirectory, destFilename + "_EDM-" + quantileName + "_" + datasetName + ".txt");
-					} else {
-						datasetFile = null;
+						subdirectory = new File(directory, destFilename + "_EDM-" + quantileName);
+						subdirectory.mkdirs();
 					}
-					final StringBuilder header = new StringBuilder();
-
-					assert q.tables.length == document.modelFractions.length : "q.tables.length =! document.modelFractions.length";
-
-					SnpGenSimulator.generateAndSaveDataset(random, predictiveDataset, noiseDataset, q.tables, dd, false, datasetFile,
-							header, document.modelFractions);
-					if (inProgressHandler != null) {
-						inProgressHandler.setValue(++fileCount);
+					final CellSampler[][] cellSamplers = SnpGenSimulator.createCellSamplers(q.tables, dd.createContinuousEndpoints.getBoolean());
+					for (int whichDataset = 0; whichDataset < datasetIterationCount; ++whichDataset) {
+						String datasetName = (new Integer(whichDataset + 1)).toString();
+						datasetName = "0000000000".substring(0, maxDatasetNumberLength - datasetName.length()) + datasetName;
+						if (destFilename != null) {
+							datasetFile = new File(subdirectory, destFilename + "_EDM-" + quantileName + "_" + datasetName + ".txt");
+						} else {
+							datasetFile = null;
+						}
+						final StringBuilder header = new StringBuilder();
+
+						assert q.tables.length == document.modelFractions.length : "q.tables.length =! document.modelFractions.length";
+
+						if (pool == null) {
+							SnpGenSimulator.generateAndSaveDataset(random, predictiveDataset, noiseDataset, q.tables, cellSamplers, dd,
+									document.noiseKernel, false, datasetFile, header, document.modelFractions);
+							if (inProgressHandler != null) {
+								inProgressHandler.setValue(++fileCount);
+							}
+						} else {
+							final long replicateSeed = SnpGenSimulator.deriveSeed(
+									SnpGenSimulator.deriveSeed(SnpGenSimulator.deriveSeed(datasetSeed, whichDocDataset), whichQuantile), whichDataset);
+							futures.add(pool.submit(createDatasetTask(replicateSeed, predictiveDataset, noiseDataset, q.tables, cellSamplers, dd,
+									datasetFile)));
+						}
 					}
 				}
 			}
+			// Report the replicates' progress, and the first failure, in replicate order:
+			for (final Future<int[][]> future : futures) {
+				SnpGenSimulator.getTaskResult(future);
+				if (inProgressHandler != null) {
+					inProgressHandler.setValue(++fileCount);
+				}
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
 		}
 
 		if (document.datasetList.size() > 0) {
@@ -209,69 +261,217 @@ public class SnpGenSimulator {
 		}
 	}
 
-	public PenetranceTable[] generatePenetranceTables(final DocModel model, final int inDesiredTableCount, final int inTryCount,
+	// Search for tables for a group of models that differ only in their heritability (see DocModel.heritabilitySweepFirstModel):
+	// each try's random table is generated once and then normalized to each model's heritability. Returns one population per model,
+	// sorted by quantile score. The search stops early as the document's model search options ask (see ModelSearchBudget).
+	// Each model's tries are recorded in its entry of ioStatistics. The search draws its random numbers, or its seed, from inRandom.
+	public PenetranceTablePopulation[] generatePenetranceTables(final List<DocModel> inModels, final RandomSource inRandom, final int inQuantileCount,
+			final int inDesiredTableCount, final int inTryCount, final ModelGenerationStatistics[] ioStatistics,
 			final ProgressHandler inProgressHandler, final int inProgressValueBase) throws Exception {
-		return generatePenetranceTables(random, inDesiredTableCount, inTryCount, model.heritability.getDouble(), -1,
-				model.prevalence.getDouble(), model.attributeCount.getInteger(), model.getAttributeNames(), model.getAlleleFrequencies(),
-				model.getUseOddsRatio(), inProgressHandler, inProgressValueBase);
+		final DocModel model = inModels.get(0);
+		final ModelSearchBudget budget = (document == null) ? new ModelSearchBudget(inQuantileCount, null, model.getUseOddsRatio(), null,
+				false) : new ModelSearchBudget(inQuantileCount, document.quantileStopTolerance, model.getUseOddsRatio(),
+				document.modelSearchSeconds, document.failFastModelSearch);
+		final double[] desiredHeritabilities = new double[inModels.size()];
+		for (int i = 0; i < desiredHeritabilities.length; ++i) {
+			desiredHeritabilities[i] = inModels.get(i).heritability.getDouble();
+		}
+		Integer threadCount = (document == null) ? null : document.modelThreadCount;
+		// Replaying a table, or resuming a search from a checkpoint, needs each try's own seed, which only the parallel search gives it. A
+		// population that is saved keeps its tables anyway, but is searched the same way, so that it holds the same tables:
+		final boolean keepTables = (document == null) || !document.seedReplayPopulation || document.savePopulation;
+		if ((threadCount == null) && (document != null) && (document.seedReplayPopulation || (document.modelCheckpointSeconds != null))) {
+			threadCount = 1;
+		}
+		if (threadCount == null) {
+			return generatePenetranceTables(inRandom, budget, ioStatistics, inDesiredTableCount, inTryCount, desiredHeritabilities, -1, model.prevalence.getDouble(),
+					model.attributeCount.getInteger(), model.getAttributeNames(), model.getAlleleFrequencies(), model.getUseOddsRatio(),
+					inProgressHandler, inProgressValueBase);
+		} else {
+			final ModelSearchCheckpoint checkpoint = createModelSearchCheckpoint(inModels, inQuantileCount, inDesiredTableCount, keepTables);
+			final long searchSeed;
+			if ((checkpoint != null) && checkpoint.load(inModels.size(), inTryCount, ioStatistics)) {
+				searchSeed = checkpoint.searchSeed;
+				System.out.println("Resuming the search for " + model.modelId.getString() + " after try " + checkpoint.triesDone + " from "
+						+ checkpoint.file);
+			} else {
+				searchSeed = (document.randomSeed == null) ? inRandom.nextLong() : document.randomSeed;
+			}
+			return generatePenetranceTables(searchSeed, threadCount, keepTables, budget, checkpoint, ioStatistics, inDesiredTableCount, inTryCount, desiredHeritabilities, -1,
+					model.prevalence.getDouble(), model.attributeCount.getInteger(), model.getAttributeNames(), model.getAlleleFrequencies(),
+					model.getUseOddsRatio(), inProgressHandler, inProgressValueBase);
+		}
 	}
 
-	public PenetranceTable[] generatePenetranceTables(final Random inRandom, final int inDesiredTableCount, final int inTablesToTryCount,
-			final double inDesiredHeritability, final double inHeritabilityTolerance, final Double inDesiredPrevalence,
-			final int inAttributeCount, final String[] inAttributeNames, final double[] inAlleleFrequencies, final boolean inUseOddsRatio,
-			final ProgressHandler inProgressHandler, final int inProgressValueBase) throws Exception {
-		PenetranceTable.ErrorState error;
-		PenetranceTable currentPenetranceTable;
-		final PenetranceTable.PenetranceTableComparatorEdm edmComparator = new PenetranceTable.PenetranceTableComparatorEdm();
-		final PenetranceTable.PenetranceTableComparatorOddsRatio oddsComparator = new PenetranceTable.PenetranceTableComparatorOddsRatio();
-
-		final List<PenetranceTable> penetranceTableList = new ArrayList<PenetranceTable>();
-		PenetranceTable.fixedConflictSuccessfully = 0;
-		PenetranceTable.fixedConflictUnsuccessfully = 0;
-		for (int whichTableIteration = 0; whichTableIteration < inTablesToTryCount; ++whichTableIteration) {
-			currentPenetranceTable = new PenetranceTable(3, inAttributeCount);
-			currentPenetranceTable.desiredHeritability = inDesiredHeritability;
-			currentPenetranceTable.desiredPrevalence = inDesiredPrevalence;
-			currentPenetranceTable.setAttributeNames(inAttributeNames);
-			currentPenetranceTable.initialize(inRandom, inAlleleFrequencies);
-			error = currentPenetranceTable.generateUnnormalized(inRandom);
-
-			if ((error == PenetranceTable.ErrorState.Ambiguous) || (error == PenetranceTable.ErrorState.Conflict)) {
-			} else {
-				currentPenetranceTable.scaleToUnitInterval();
-				currentPenetranceTable.adjustPrevalence();
-				final double herit = currentPenetranceTable.calcHeritability();
-				boolean heritabilityAchieved = false;
-				if ((inHeritabilityTolerance < 0)
-						|| (Math.abs((herit - currentPenetranceTable.desiredHeritability) / currentPenetranceTable.desiredHeritability) < inHeritabilityTolerance)) {
-					currentPenetranceTable.adjustHeritability();
-					heritabilityAchieved = currentPenetranceTable.normalized;
+	// Tries are spread over inThreadCount threads. Each try draws from its own Random, seeded from (inSearchSeed, try index), and the
+	// accepted tables are collected in try order, so the population does not depend on the number of threads.
+	// Returns one population for each of inDesiredHeritabilities, sorted by quantile score; the search stops once every population is
+	// full or done by inBudget's rules, which are checked after each try as it is collected, and, at inBudget's deadline, after the batch
+	// that is running. Unless inKeepTables, the populations keep only each table's scores and try seed (see regeneratePenetranceTable()).
+	// The tries are recorded in ioStatistics, one per heritability, in try order.
+	// If ioCheckpoint is not null, the search starts from its loaded state, if it has one, and saves its state to it whenever it is
+	// due and when the search stops.
+	public PenetranceTablePopulation[] generatePenetranceTables(final long inSearchSeed, final int inThreadCount, final boolean inKeepTables,
+			final ModelSearchBudget inBudget, final ModelSearchCheckpoint ioCheckpoint, final ModelGenerationStatistics[] ioStatistics, final int inDesiredTableCount,
+			final int inTablesToTryCount, final double[] inDesiredHeritabilities, final double inHeritabilityTolerance,
+			final Double inDesiredPrevalence, final int inAttributeCount, final String[] inAttributeNames, final double[] inAlleleFrequencies,
+			final boolean inUseOddsRatio, final ProgressHandler inProgressHandler, final int inProgressValueBase) throws Exception {
+		final int heritabilityCount = inDesiredHeritabilities.length;
+		final boolean isResumed = (ioCheckpoint != null) && (ioCheckpoint.populations != null);
+		final PenetranceTablePopulation[] populations = isResumed ? ioCheckpoint.populations : SnpGenSimulator.createPenetranceTablePopulations(
+				heritabilityCount, inKeepTables);
+		final GenotypeProbabilities genotypeProbabilities = new GenotypeProbabilities(3, inAlleleFrequencies);
+		final boolean useLegacyModelGeneration = useLegacyModelGeneration();
+		final SnpGenDocument.RANDOM_ENGINE randomEngine = getRandomEngine();
+		final NullSpaceTableGenerator nullSpaceTableGenerator = createNullSpaceTableGenerator(genotypeProbabilities);
+		final int triesPerTask = Math.max(1,
+				Math.min(SnpGenSimulator.kTriesPerSearchTask, SnpGenSimulator.kMaxSearchTaskCellCount / genotypeProbabilities.cellCount));
+		final int batchTryCount = triesPerTask * SnpGenSimulator.kSearchTasksPerThread * inThreadCount;
+		final ForkJoinPool pool = new ForkJoinPool(inThreadCount);
+		try {
+			int batchStart = isResumed ? ioCheckpoint.triesDone : 0;
+			int triesDone = batchStart;
+			int doneListCount = inBudget.countDone(populations, inDesiredTableCount);
+			while ((batchStart < inTablesToTryCount) && (doneListCount < heritabilityCount)) {
+				final int batchEnd = (int) Math.min((long) batchStart + batchTryCount, inTablesToTryCount);
+				// Populations that are already done need no more normalized copies:
+				final boolean[] isHeritabilityWanted = SnpGenSimulator.findUnfilledPenetranceTablePopulations(populations, inBudget,
+						inDesiredTableCount);
+				final List<Future<SearchTaskResult>> futures = new ArrayList<Future<SearchTaskResult>>();
+				for (int taskStart = batchStart; taskStart < batchEnd; taskStart += triesPerTask) {
+					final int firstTry = taskStart;
+					final int lastTry = Math.min(taskStart + triesPerTask, batchEnd);
+					futures.add(pool.submit(new Callable<SearchTaskResult>() {
+						@Override
+						public SearchTaskResult call() throws Exception {
+							// Generate the candidates into a batch, score the batch, then normalize the candidates that can reach a target:
+							final SearchTaskResult outResult = new SearchTaskResult(lastTry - firstTry, heritabilityCount);
+							final PenetranceTableBatch batch = SnpGenSimulator.getScratchPenetranceTableBatch(inAttributeCount,
+									genotypeProbabilities, triesPerTask);
+							final int[] batchTries = new int[batch.capacity];
+							int whichTry = firstTry;
+							while (whichTry < lastTry) {
+								batch.clear();
+								final long generationStart = System.nanoTime();
+								for (; (whichTry < lastTry) && !batch.isFull(); ++whichTry) {
+									final RandomSource tryRandom = RandomSource.create(randomEngine, SnpGenSimulator.deriveSeed(inSearchSeed, whichTry));
+									final PenetranceTable candidate = batch.nextScratchTable();
+									final TryOutcome failure = SnpGenSimulator.generateUnnormalizedCandidatePenetranceTable(tryRandom, candidate,
+											inDesiredPrevalence, inAttributeNames, genotypeProbabilities, nullSpaceTableGenerator, useLegacyModelGeneration);
+									if (failure == null) {
+										batchTries[batch.size()] = whichTry;
+										batch.add(candidate);
+									} else {
+										SnpGenSimulator.fillTryOutcomes(outResult.outcomes[whichTry - firstTry], isHeritabilityWanted, failure);
+									}
+								}
+								final long scoringStart = System.nanoTime();
+								outResult.generationNanos += scoringStart - generationStart;
+								if (!useLegacyModelGeneration) {
+									batch.evaluate();
+									outResult.scoringNanos += System.nanoTime() - scoringStart;
+								}
+								for (int i = 0; i < batch.size(); ++i) {
+									final PenetranceTable candidate = batch.getTable(i);
+									final int resultIndex = batchTries[i] - firstTry;
+									final double herit;
+									if (useLegacyModelGeneration) {
+										final long start = System.nanoTime();
+										herit = SnpGenSimulator.prepareCandidatePenetranceTable(candidate, true);
+										outResult.scoringNanos += System.nanoTime() - start;
+									} else {
+										herit = batch.getUnadjustedHeritability(i);
+									}
+									outResult.tables[resultIndex] = SnpGenSimulator.normalizeCandidatePenetranceTable(candidate, herit,
+											inDesiredHeritabilities, isHeritabilityWanted, inHeritabilityTolerance, useLegacyModelGeneration,
+											outResult.outcomes[resultIndex], outResult.normalizationNanos);
+								}
+							}
+							return outResult;
+						}
+					}));
 				}
-				if (!heritabilityAchieved) {
-				} else {
-					currentPenetranceTable.checkRowSums();
-					if (currentPenetranceTable.rowSumsValid) {
-						penetranceTableList.add(currentPenetranceTable);
-					}
-
-					if (penetranceTableList.size() >= inDesiredTableCount) {
-						break;
+				// Collect in try order, so that the same tables are accepted no matter how the tasks were scheduled:
+				int whichTry = batchStart;
+				COLLECT: for (final Future<SearchTaskResult> future : futures) {
+					final SearchTaskResult result = SnpGenSimulator.getTaskResult(future);
+					SnpGenSimulator.addSearchTaskTimes(ioStatistics, result);
+					for (int i = 0; i < result.tables.length; ++i) {
+						doneListCount = SnpGenSimulator.addToPenetranceTablePopulations(populations, ioStatistics, inBudget, result.tables[i],
+								result.outcomes[i], SnpGenSimulator.deriveSeed(inSearchSeed, whichTry++), inDesiredTableCount);
+						if (doneListCount >= heritabilityCount) {
+							break COLLECT;
+						}
+						inBudget.checkAcceptanceRate(populations, inDesiredTableCount, whichTry, inTablesToTryCount);
 					}
 				}
+				triesDone = whichTry;
+				if (inProgressHandler != null) {
+					inProgressHandler.setValue(inProgressValueBase + batchEnd - 1);
+				}
+				batchStart = batchEnd;
+				if ((batchStart < inTablesToTryCount) && (doneListCount < heritabilityCount) && inBudget.isPastDeadline()) {
+					SnpGenSimulator.printDeadlineMessage(batchStart);
+					break;
+				}
+				if ((ioCheckpoint != null) && ioCheckpoint.isDue()) {
+					ioCheckpoint.save(inSearchSeed, triesDone, populations, ioStatistics);
+				}
 			}
-			if (inProgressHandler != null) {
-				inProgressHandler.setValue(inProgressValueBase + whichTableIteration);
+			// The last state is saved too, so that a finished search can be extended with more tries:
+			if (ioCheckpoint != null) {
+				ioCheckpoint.save(inSearchSeed, triesDone, populations, ioStatistics);
 			}
+		} finally {
+			pool.shutdownNow();
 		}
+		SnpGenSimulator.sortPenetranceTablePopulations(populations, inUseOddsRatio);
+		return populations;
+	}
 
-		final PenetranceTable[] penetranceTables = penetranceTableList.toArray(new PenetranceTable[0]);
-		if (inUseOddsRatio) {
-			Arrays.sort(penetranceTables, oddsComparator);
-		} else {
-			Arrays.sort(penetranceTables, edmComparator);
+	// Returns one population for each of inDesiredHeritabilities, sorted by quantile score; the search stops once every population is
+	// full or done by inBudget's rules. The tries share inRandom, so they cannot be replayed one by one, and the populations keep their
+	// tables.
+	public PenetranceTablePopulation[] generatePenetranceTables(final RandomSource inRandom, final ModelSearchBudget inBudget,
+			final ModelGenerationStatistics[] ioStatistics, final int inDesiredTableCount, final int inTablesToTryCount,
+			final double[] inDesiredHeritabilities, final double inHeritabilityTolerance, final Double inDesiredPrevalence,
+			final int inAttributeCount, final String[] inAttributeNames, final double[] inAlleleFrequencies, final boolean inUseOddsRatio,
+			final ProgressHandler inProgressHandler, final int inProgressValueBase) throws Exception {
+		final int heritabilityCount = inDesiredHeritabilities.length;
+		final PenetranceTablePopulation[] populations = SnpGenSimulator.createPenetranceTablePopulations(heritabilityCount, true);
+		final GenotypeProbabilities genotypeProbabilities = new GenotypeProbabilities(3, inAlleleFrequencies);
+		final boolean useLegacyModelGeneration = useLegacyModelGeneration();
+		final NullSpaceTableGenerator nullSpaceTableGenerator = createNullSpaceTableGenerator(genotypeProbabilities);
+		boolean[] isHeritabilityWanted = SnpGenSimulator.findUnfilledPenetranceTablePopulations(populations, inBudget, inDesiredTableCount);
+		int doneListCount = 0;
+		final SearchTaskResult tryResult = new SearchTaskResult(1, heritabilityCount);
+		for (int whichTableIteration = 0; whichTableIteration < inTablesToTryCount; ++whichTableIteration) {
+			tryResult.clear();
+			SnpGenSimulator.generateCandidatePenetranceTables(inRandom, inDesiredHeritabilities, isHeritabilityWanted,
+					inHeritabilityTolerance, inDesiredPrevalence, inAttributeCount, inAttributeNames, genotypeProbabilities,
+					nullSpaceTableGenerator, useLegacyModelGeneration, tryResult);
+			SnpGenSimulator.addSearchTaskTimes(ioStatistics, tryResult);
+			final int newDoneListCount = SnpGenSimulator.addToPenetranceTablePopulations(populations, ioStatistics, inBudget,
+					tryResult.tables[0], tryResult.outcomes[0], 0, inDesiredTableCount);
+			if (newDoneListCount >= heritabilityCount) {
+				break;
+			}
+			if (newDoneListCount != doneListCount) {
+				doneListCount = newDoneListCount;
+				isHeritabilityWanted = SnpGenSimulator.findUnfilledPenetranceTablePopulations(populations, inBudget, inDesiredTableCount);
+			}
+			inBudget.checkAcceptanceRate(populations, inDesiredTableCount, whichTableIteration + 1, inTablesToTryCount);
+			if (((whichTableIteration + 1) < inTablesToTryCount) && inBudget.isPastDeadline()) {
+				SnpGenSimulator.printDeadlineMessage(whichTableIteration + 1);
+				break;
+			}
+			if (inProgressHandler != null) {
+				inProgressHandler.setValue(inProgressValueBase + whichTableIteration);
+			}
 		}
 
-		return penetranceTables;
+		SnpGenSimulator.sortPenetranceTablePopulations(populations, inUseOddsRatio);
+		return populations;
 	}
 
 	public double[][] generateTablesForModels(final ArrayList<DocModel> modelList, final int desiredQuantileCount,
@@ -281,14 +481,52 @@ public class SnpGenSimulator {
 			System.out.println("Generating models...");
 		}
 
-		final double[][] allTableScores = new double[modelCount][];
+		// A heritability sweep's models are searched together:
+		final List<Integer> groupStarts = new ArrayList<Integer>();
 		for (int whichModel = 0; whichModel < modelCount; ++whichModel) {
-			final int progressValueBase = whichModel * inDesiredPopulationCount;
-			final DocModel model = modelList.get(whichModel);
-			allTableScores[whichModel] = generateTablesForOneModel(model, desiredQuantileCount, inDesiredPopulationCount, inTryCount,
-					inProgressHandler, progressValueBase);
+			if (groupStarts.isEmpty()
+					|| (modelList.get(whichModel).heritabilitySweepFirstModel != modelList.get(groupStarts.get(groupStarts.size() - 1)))) {
+				groupStarts.add(whichModel);
+			}
+		}
+		groupStarts.add(modelCount);
+
+		final double[][] allTableScores = new double[modelCount][];
+		final int concurrentModelCount = document.concurrentModelCount;
+		if ((concurrentModelCount <= 1) || (groupStarts.size() <= 2)) {
+			for (int whichGroup = 0; whichGroup < (groupStarts.size() - 1); ++whichGroup) {
+				final int groupStart = groupStarts.get(whichGroup);
+				final double[][] groupTableScores = generateTablesForModelGroup(modelList.subList(groupStart, groupStarts.get(whichGroup + 1)),
+						desiredQuantileCount, inDesiredPopulationCount, inTryCount, inProgressHandler, groupStart * inDesiredPopulationCount);
+				System.arraycopy(groupTableScores, 0, allTableScores, groupStart, groupTableScores.length);
+			}
+		} else {
+			// Each group is generated from its own Random and touches only its own models, so the groups can run at once; their
+			// results are gathered in order, and the first group to fail (in model order) reports its error, as it would have alone.
+			final ForkJoinPool pool = new ForkJoinPool(concurrentModelCount);
+			try {
+				final List<Future<double[][]>> futures = new ArrayList<Future<double[][]>>();
+				for (int whichGroup = 0; whichGroup < (groupStarts.size() - 1); ++whichGroup) {
+					final int groupStart = groupStarts.get(whichGroup);
+					final List<DocModel> groupModels = modelList.subList(groupStart, groupStarts.get(whichGroup + 1));
+					futures.add(pool.submit(new Callable<double[][]>() {
+						@Override
+						public double[][] call() throws Exception {
+							return generateTablesForModelGroup(groupModels, desiredQuantileCount, inDesiredPopulationCount, inTryCount,
+									inProgressHandler, groupStart * inDesiredPopulationCount);
+						}
+					}));
+				}
+				for (int whichGroup = 0; whichGroup < futures.size(); ++whichGroup) {
+					final double[][] groupTableScores = SnpGenSimulator.getTaskResult(futures.get(whichGroup));
+					System.arraycopy(groupTableScores, 0, allTableScores, groupStarts.get(whichGroup), groupTableScores.length);
+				}
+			} finally {
+				pool.shutdownNow();
+			}
 		}
 		if (modelCount > 0) {
+			tablePopulationCountFound = allTableScores[modelCount - 1].length;
 			System.out.println("Done generating models.");
 		}
 		return allTableScores;
@@ -357,6 +595,38 @@ public class SnpGenSimulator {
 		return outQuantiles;
 	}
 
+	// Select inQuantileCount quantile tables from each of the population files inPopulationFiles (see PenetranceTablePopulationFile)
+	// with the document's selection strategy, and write them to a model file named after the population file.
+	public void selectFromPopulationFiles(final File[] inPopulationFiles, final int inQuantileCount) throws Exception {
+		for (final File populationFile : inPopulationFiles) {
+			final PenetranceTablePopulationFile population = new PenetranceTablePopulationFile(populationFile);
+			if (population.size() < inQuantileCount) {
+				throw new ProcessingException("Unable to select " + inQuantileCount + " table quantiles from the " + population.size()
+						+ " tables of " + populationFile);
+			}
+			final double[] scores = population.getQuantileScores();
+			final int[] representatives = SnpGenSimulator.selectIndices(document.selectionStrategy, scores, inQuantileCount);
+			final PenetranceTable[] tables = new PenetranceTable[inQuantileCount];
+			for (int whichQuantile = 0; whichQuantile < inQuantileCount; ++whichQuantile) {
+				tables[whichQuantile] = population.readTable(representatives[whichQuantile]);
+			}
+
+			String baseFilename = populationFile.getName();
+			if (baseFilename.toLowerCase().endsWith(".gmtp")) {
+				baseFilename = baseFilename.substring(0, baseFilename.length() - 5);
+			}
+			if (baseFilename.endsWith("_Population")) {
+				baseFilename = baseFilename.substring(0, baseFilename.length() - 11);
+			}
+			final File tablesFile = calcCombinedFilename(new File(populationFile.getParentFile(), baseFilename), "_"
+					+ document.selectionStrategy + "-" + inQuantileCount + "_Models", "txt");
+			final String header = "Selected " + inQuantileCount + " " + (population.useOddsRatio ? "OddsRatio" : "EDM")
+					+ " quantiles from a population of " + population.size() + " tables.";
+			writeModelTables(tables, inQuantileCount, tablesFile, header, false);
+			System.out.println("Selected " + inQuantileCount + " quantiles from " + populationFile + " into " + tablesFile);
+		}
+	}
+
 	public void setDocument(final SnpGenDocument inDoc) {
 		document = inDoc;
 	}
@@ -367,19 +637,27 @@ public class SnpGenSimulator {
 
 	public void writeModelTables(final DocModel model, final File tablesFile, final String header, final boolean inSaveUnnormalized)
 			throws IOException {
-		final int quantileCount = model.getQuantileCountInModel();
+		writeModelTables(model.getPenetranceTables(), model.getQuantileCountInModel(), tablesFile, header, inSaveUnnormalized);
+	}
 
-		try (PrintWriter tableStream = new PrintWriter(new FileWriter(tablesFile, false));) {
+	private void writeModelTables(final PenetranceTable[] tables, final int quantileCount, final File tablesFile, final String header,
+			final boolean inSaveUnnormalized) throws IOException {
+		// Stream the tables, one after another, through a single buffered writer; the layout is the same as appending each of them
+		// with PenetranceTable.saveToFile().
+		try (PrintWriter tableStream = new PrintWriter(new BufferedWriter(new FileWriter(tablesFile, false)));) {
 
 			if (header != null) {
 				tableStream.println(header);
 			}
-		}
 
-		final PenetranceTable[] tables = model.getPenetranceTables();
-		for (int q = 0; q < quantileCount; ++q) {
-			if (tables.length > q) {
-				tables[q].saveToFile(tablesFile, true, inSaveUnnormalized);
+			for (int q = 0; q < quantileCount; ++q) {
+				if (tables.length > q) {
+					tableStream.println();
+					tableStream.println();
+					tableStream.println();
+					tableStream.println();
+					tables[q].writeWithStats(tableStream, inSaveUnnormalized);
+				}
 			}
 		}
 	}
@@ -406,6 +684,12 @@ public class SnpGenSimulator {
 						scoreStream.println(populationScores[i]);
 					}
 				}
+				final ModelGenerationStatistics statistics = model.getGenerationStatistics();
+				if (statistics != null) {
+					try (final PrintWriter statisticsStream = new PrintWriter(new FileWriter(calcCombinedFilename(destFile, "_Statistics", "txt")));) {
+						statistics.write(statisticsStream);
+					}
+				}
 				final File tablesFile = calcCombinedFilename(destFile, "_Models", "txt");
 				assert quantileCount == model.getQuantileCountInModel();
 				final String header = "Selected " + quantileCount + " " + scoreName + " quantiles from a population of "
@@ -435,6 +719,101 @@ public class SnpGenSimulator {
 		return scoreName;
 	}
 
+	// Returns a task that generates and saves one replicate dataset from its own Random, seeded with inSeed, and its own copy of
+	// inTables, whose case and control counts the generation changes. The cell samplers are not changed, so the tasks share them.
+	private Callable<int[][]> createDatasetTask(final long inSeed, final int[][] inPredictiveDataset, final int[][] inNoiseDataset,
+			final PenetranceTable[] inTables, final CellSampler[][] inCellSamplers, final DocDataset inDataset, final File inDestFile) {
+		final double[] modelFractions = document.modelFractions;
+		final SnpGenDocument.NOISE_KERNEL noiseKernel = document.noiseKernel;
+		final SnpGenDocument.RANDOM_ENGINE randomEngine = getRandomEngine();
+		return new Callable<int[][]>() {
+			@Override
+			public int[][] call() throws Exception {
+				final PenetranceTable[] tables = new PenetranceTable[inTables.length];
+				for (int i = 0; i < tables.length; ++i) {
+					tables[i] = (PenetranceTable) inTables[i].clone();
+				}
+				return SnpGenSimulator.generateAndSaveDataset(RandomSource.create(randomEngine, inSeed), inPredictiveDataset, inNoiseDataset, tables,
+						inCellSamplers, inDataset, noiseKernel, false, inDestFile, new StringBuilder(), modelFractions);
+			}
+		};
+	}
+
+	// Returns the checkpoint of the search for inModels, saved next to the first model's file, or null if the document does not ask for
+	// checkpoints or the model has no file.
+	private ModelSearchCheckpoint createModelSearchCheckpoint(final List<DocModel> inModels, final int inQuantileCount,
+			final int inDesiredPopulationCount, final boolean inKeepTables) {
+		final DocModel model = inModels.get(0);
+		if ((document == null) || (document.modelCheckpointSeconds == null) || (model.file == null)) {
+			return null;
+		}
+		final String description = describeModelSearch(inModels, inQuantileCount, inDesiredPopulationCount) + "\nkeepTables="
+				+ inKeepTables;
+		return new ModelSearchCheckpoint(calcCombinedFilename(model.file, "_Checkpoint", "gmtk"), description,
+				document.modelCheckpointSeconds);
+	}
+
+	// Returns the generator for the tables of a search, or null if they are to be generated by propagation.
+	private NullSpaceTableGenerator createNullSpaceTableGenerator(final GenotypeProbabilities inGenotypeProbabilities) {
+		if ((document != null) && (document.modelGenerator == SnpGenDocument.MODEL_GENERATOR.nullSpace)) {
+			return new NullSpaceTableGenerator(inGenotypeProbabilities);
+		}
+		return null;
+	}
+
+	// Returns a source of the document's random engine, seeded with inSeed if it is not null.
+	private RandomSource createRandomSource(final Integer inSeed) {
+		return (inSeed == null) ? RandomSource.create(getRandomEngine()) : RandomSource.create(getRandomEngine(), inSeed);
+	}
+
+	// Returns a description of everything that determines the tables generated for inModels (see generateTablesForModelGroup()), to
+	// key the model cache with; or null if there is no cache, the tables are not reproducible (without a random seed or with a time
+	// limit on the search), or the populations are to be saved, since the cache does not hold them.
+	private String describeModelGroup(final List<DocModel> inModels, final int inQuantileCount, final int inDesiredPopulationCount,
+			final int inTryCount) {
+		if ((document.modelCacheDirectory == null) || (document.randomSeed == null) || (document.modelSearchSeconds != null)
+				|| document.savePopulation) {
+			return null;
+		}
+		final StringBuilder outDescription = new StringBuilder(describeModelSearch(inModels, inQuantileCount, inDesiredPopulationCount));
+		outDescription.append("\nquantileCount=").append(inQuantileCount);
+		outDescription.append("\ntryCount=").append(inTryCount);
+		outDescription.append("\nquantileTargetTolerance=").append(document.quantileTargetTolerance);
+		return outDescription.toString();
+	}
+
+	// Returns a description of everything that determines the populations that the search for inModels accepts in a given number of
+	// tries, for the model cache and search checkpoints.
+	private String describeModelSearch(final List<DocModel> inModels, final int inQuantileCount, final int inDesiredPopulationCount) {
+		final DocModel model = inModels.get(0);
+		final StringBuilder outDescription = new StringBuilder();
+		outDescription.append("attributeNames=").append(Arrays.toString(model.getAttributeNames()));
+		outDescription.append("\nminorAlleleFrequencies=").append(Arrays.toString(model.getAlleleFrequencies()));
+		outDescription.append("\nprevalence=").append(model.prevalence.getDouble());
+		outDescription.append("\nheritabilities=");
+		for (final DocModel groupModel : inModels) {
+			outDescription.append(groupModel.heritability.getDouble()).append(' ');
+		}
+		outDescription.append("\nuseOddsRatio=").append(model.getUseOddsRatio());
+		outDescription.append("\npopulationCount=").append(inDesiredPopulationCount);
+		outDescription.append("\nrandomSeed=").append(document.randomSeed);
+		// The number of threads does not matter, only whether each try has its own seed:
+		outDescription.append("\nperTrySeeds=").append((document.modelThreadCount != null) || document.seedReplayPopulation
+				|| (document.modelCheckpointSeconds != null));
+		outDescription.append("\nlegacyModelGeneration=").append(document.legacyModelGeneration);
+		outDescription.append("\nmodelGenerator=").append(document.modelGenerator);
+		// (Left out for the legacy engine, so that the cache entries and checkpoints made before there was a choice still match)
+		if (getRandomEngine() != SnpGenDocument.RANDOM_ENGINE.legacy) {
+			outDescription.append("\nrandomEngine=").append(document.randomEngine);
+		}
+		// The quantile count only matters to the search through the quantile stop tolerance:
+		outDescription.append("\nquantileStopTolerance=").append(document.quantileStopTolerance);
+		if (document.quantileStopTolerance != null) {
+			outDescription.append("\nstopQuantileCount=").append(inQuantileCount);
+		}
+		return outDescription.toString();
+	}
+
 	private PenetranceTable findTable(final BufferedReader modelReader) throws IOException {
 		String line;
 		String[] attributeNames;
@@ -457,29 +836,42 @@ public class SnpGenSimulator {
 		return outTable;
 	}
 
-	// Returns the number of tables found, from which the desired quantiles were
-	// chosen.
-	private double[] generateTablesForOneModel(final DocModel model, final int desiredQuantileCount, final int inDesiredPopulationCount,
-			final int inTryCount, final ProgressHandler inProgressHandler, final int inProgressValueBase) throws Exception {
-		double[] outAllTableScores;
-
-		setRandomSeed(document.randomSeed);
-		final PenetranceTable[] tables = generatePenetranceTables(model, inDesiredPopulationCount, inTryCount, inProgressHandler,
-				inProgressValueBase);
-		final int tableCount = tables.length;
-		if (tableCount < desiredQuantileCount) {
-			throw new ProcessingException("Unable to generate desired number of table quantiles");
+	// Set the quantile tables of each of inModels, which are either a single model or the models of one heritability sweep, from the
+	// model cache if it has them and otherwise by searching for them (see searchTablesForModelGroup()). Returns each model's population
+	// scores.
+	private double[][] generateTablesForModelGroup(final List<DocModel> inModels, final int desiredQuantileCount,
+			final int inDesiredPopulationCount, final int inTryCount, final ProgressHandler inProgressHandler, final int inProgressValueBase)
+			throws Exception {
+		final String description = describeModelGroup(inModels, desiredQuantileCount, inDesiredPopulationCount, inTryCount);
+		if (description == null) {
+			return searchTablesForModelGroup(inModels, desiredQuantileCount, inDesiredPopulationCount, inTryCount, inProgressHandler,
+					inProgressValueBase);
 		}
-
-		outAllTableScores = new double[tableCount];
-		for (int i = 0; i < tableCount; ++i) {
-			outAllTableScores[i] = tables[i].getQuantileScore(model.getUseOddsRatio());
+		final ModelCache cache = new ModelCache(document.modelCacheDirectory, document.modelCacheMegabytes * 1024L * 1024L);
+		final boolean[] wasCached = new boolean[1];
+		final ModelCache.Entry entry = cache.getOrCompute(description, new Callable<ModelCache.Entry>() {
+			@Override
+			public ModelCache.Entry call() throws Exception {
+				final double[][] scores = searchTablesForModelGroup(inModels, desiredQuantileCount, inDesiredPopulationCount, inTryCount,
+						inProgressHandler, inProgressValueBase);
+				final PenetranceTable[][] tables = new PenetranceTable[inModels.size()][];
+				for (int whichModel = 0; whichModel < tables.length; ++whichModel) {
+					tables[whichModel] = inModels.get(whichModel).getPenetranceTables();
+				}
+				return new ModelCache.Entry(tables, scores);
+			}
+		}, wasCached);
+		if (wasCached[0]) {
+			for (int whichModel = 0; whichModel < inModels.size(); ++whichModel) {
+				inModels.get(whichModel).setPenetranceTables(entry.tables[whichModel]);
+				System.out.println("Using the cached tables of " + inModels.get(whichModel).modelId.getString() + ".");
+			}
 		}
+		return entry.scores;
+	}
 
-		tablePopulationCountFound = tableCount;
-
-		selectPenetranceTablesRepresentativesUniformly(desiredQuantileCount, tables, model);
-		return outAllTableScores;
+	private SnpGenDocument.RANDOM_ENGINE getRandomEngine() {
+		return (document == null) ? SnpGenDocument.RANDOM_ENGINE.legacy : document.randomEngine;
 	}
 
 	private PenetranceTableQuantile[] mergeQuantiles(final PenetranceTableQuantile[] inQuantiles1,
@@ -503,6 +895,33 @@ public class SnpGenSimulator {
 		return outPenetranceTableQuantiles;
 	}
 
+	// Move each of the selected ioModelTables towards its quantile's target score (see calcQuantileTargets()) until it is within the
+	// document's quantileTargetTolerance, as a fraction of the population's score range.
+	private void optimizeQuantileTables(final PenetranceTable[] ioModelTables, final double[] inSortedScores, final DocModel inModel,
+			final RandomSource inRandom) throws CloneNotSupportedException {
+		final boolean useOddsRatio = inModel.getUseOddsRatio();
+		final double[] targets = SnpGenSimulator.calcQuantileTargets(inSortedScores, ioModelTables.length);
+		final double tolerance = document.quantileTargetTolerance * (inSortedScores[inSortedScores.length - 1] - inSortedScores[0]);
+		final QuantileTargetOptimizer optimizer = new QuantileTargetOptimizer(ioModelTables[0].getGenotypeProbabilities(), useOddsRatio);
+		// The optimizer's random numbers are drawn from their own streams, so that the datasets generated afterwards do not change:
+		final long optimizerSeed = ((document.randomSeed == null) ? inRandom.nextLong() : document.randomSeed)
+				^ SnpGenSimulator.kQuantileOptimizerSeedSalt;
+		int missedCount = 0;
+		for (int whichQuantile = 0; whichQuantile < ioModelTables.length; ++whichQuantile) {
+			final RandomSource quantileRandom = RandomSource.create(getRandomEngine(), SnpGenSimulator.deriveSeed(optimizerSeed,
+					whichQuantile));
+			ioModelTables[whichQuantile] = optimizer.optimize(ioModelTables[whichQuantile], inModel.heritability.getDouble(),
+					targets[whichQuantile], tolerance, quantileRandom);
+			if (Math.abs(ioModelTables[whichQuantile].getQuantileScore(useOddsRatio) - targets[whichQuantile]) > tolerance) {
+				++missedCount;
+			}
+		}
+		if (missedCount > 0) {
+			System.out.println(missedCount + " of the " + ioModelTables.length + " quantiles of " + inModel.modelId.getString()
+					+ " could not be brought within the target tolerance; the closest tables found were used.");
+		}
+	}
+
 	private void parseTable(final BufferedReader modelReader, final PenetranceTable inTable) throws IOException, InputException {
 		String line;
 		String[] numbers;
@@ -550,7 +969,7 @@ public class SnpGenSimulator {
 					if (whichCell >= inTable.cellCount) {
 						throw new InputException("Got a table with too many cells");
 					}
-					inTable.cells[whichCell++] = new PenetranceTable.PenetranceCell(cellValue);
+					inTable.setPenetranceValue(whichCell++, cellValue);
 				}
 			}
 			if (whichCell >= inTable.cellCount) {
@@ -560,99 +979,94 @@ public class SnpGenSimulator {
 		inTable.calcAndSetHeritability();
 	}
 
-	private void selectPenetranceTablesRepresentativesUniformly(final int inQuantileCount, final PenetranceTable[] tablePopulation,
-			final DocModel model) {
-		final double[] targetRASs = new double[inQuantileCount];
-
-		final boolean useOddsRatio = model.getUseOddsRatio();
-		final int tablePopulationSize = tablePopulation.length;
-
-		// Set the target quantile scores:
-		final double minRAS = tablePopulation[0].getQuantileScore(useOddsRatio);
-		final double maxRAS = tablePopulation[tablePopulationSize - 1].getQuantileScore(useOddsRatio);
-		if (inQuantileCount == 1) {
-			targetRASs[0] = (minRAS + maxRAS) / 2F;
-		} else {
-			final double delta = (maxRAS - minRAS) / (inQuantileCount - 1);
-			for (int whichQuantile = 0; whichQuantile < inQuantileCount; ++whichQuantile) {
-				targetRASs[whichQuantile] = minRAS + (whichQuantile * delta);
-			}
+	// Regenerate a table of a population that keeps only scores, by replaying the try seeded with inTrySeed of the search for
+	// inSearchModel (the first model of its group) and normalizing the result to inHeritability. Replaying a try repeats exactly the
+	// computations the search made for it, so the table is the one that was scored.
+	private PenetranceTable regeneratePenetranceTable(final DocModel inSearchModel, final double inHeritability, final long inTrySeed)
+			throws Exception {
+		final GenotypeProbabilities genotypeProbabilities = new GenotypeProbabilities(3, inSearchModel.getAlleleFrequencies());
+		final boolean useLegacyModelGeneration = useLegacyModelGeneration();
+		final PenetranceTable candidate = new PenetranceTable(3, inSearchModel.attributeCount.getInteger());
+		PenetranceTable[] tables = null;
+		if (SnpGenSimulator.generateUnnormalizedCandidatePenetranceTable(RandomSource.create(getRandomEngine(), inTrySeed), candidate, inSearchModel.prevalence.getDouble(),
+				inSearchModel.getAttributeNames(), genotypeProbabilities, createNullSpaceTableGenerator(genotypeProbabilities),
+				useLegacyModelGeneration) == null) {
+			final double herit = SnpGenSimulator.prepareCandidatePenetranceTable(candidate, useLegacyModelGeneration);
+			tables = SnpGenSimulator.normalizeCandidatePenetranceTable(candidate, herit, new double[] { inHeritability },
+					new boolean[] { true }, -1, useLegacyModelGeneration, new TryOutcome[1], new long[1]);
 		}
-
-		int tableIter = 0;
-		int quantileIter;
-		int matchingTable;
-		int priorMatchingTable = -1;
-
-		// Copy the tables from the appropriate spots in
-		// outPenetranceTableQuantiles to the model:
-		final PenetranceTable[] modelTables = new PenetranceTable[inQuantileCount];
-		model.setPenetranceTables(modelTables);
-
-		// Initialize the outputs to null, for "not set yet":
-		for (quantileIter = 0; quantileIter < inQuantileCount; ++quantileIter) {
-			modelTables[quantileIter] = null;
+		if ((tables == null) || (tables[0] == null)) {
+			throw new ProcessingException("Unable to regenerate the penetrance table of try seed " + inTrySeed);
 		}
+		return tables[0];
+	}
 
-		quantileIter = 0;
-		if (inQuantileCount > 1) {
-			// If there's more than one quantile, then we know that the first
-			// quantile is the very first table.
-			modelTables[quantileIter++] = tablePopulation[tableIter++];
-			priorMatchingTable = 0;
+	// Generate the table population of each of inModels, which are either a single model or the models of one heritability sweep,
+	// and select each model's quantiles from its population, saving the population if the document asks to. Returns each model's
+	// population scores.
+	private double[][] searchTablesForModelGroup(final List<DocModel> inModels, final int desiredQuantileCount,
+			final int inDesiredPopulationCount, final int inTryCount, final ProgressHandler inProgressHandler, final int inProgressValueBase)
+			throws Exception {
+		final double[][] outAllTableScores = new double[inModels.size()][];
+
+		// Every group's search starts from the random seed, so each can have its own Random, and the groups are independent:
+		final RandomSource groupRandom = createRandomSource(document.randomSeed);
+		final ModelGenerationStatistics[] statistics = new ModelGenerationStatistics[inModels.size()];
+		for (int whichModel = 0; whichModel < inModels.size(); ++whichModel) {
+			statistics[whichModel] = new ModelGenerationStatistics(inModels.get(whichModel).modelId.getString());
+			inModels.get(whichModel).setGenerationStatistics(statistics[whichModel]);
 		}
-		for (; tableIter < tablePopulationSize; ++tableIter) {
-			// Look for the first reliefAccuracyScore greater than the current
-			// target:
-			if (tablePopulation[tableIter].getQuantileScore(useOddsRatio) > targetRASs[quantileIter]) {
-				// If the table before the current table is closer to the target
-				// than the current table, and is available,
-				// then use it; else use the current table:
-				if ((tableIter > 0)
-						&& (Math.abs(tablePopulation[tableIter - 1].getQuantileScore(useOddsRatio) - targetRASs[quantileIter]) < Math
-								.abs(tablePopulation[tableIter].getQuantileScore(useOddsRatio) - targetRASs[quantileIter]))) {
-					matchingTable = tableIter - 1;
-				} else {
-					matchingTable = tableIter;
-				}
+		final long searchStart = System.nanoTime();
+		final PenetranceTablePopulation[] populations = generatePenetranceTables(inModels, groupRandom, desiredQuantileCount, inDesiredPopulationCount,
+				inTryCount, statistics, inProgressHandler, inProgressValueBase);
+		final long searchNanos = System.nanoTime() - searchStart;
+		for (int whichModel = 0; whichModel < inModels.size(); ++whichModel) {
+			final DocModel model = inModels.get(whichModel);
+			final PenetranceTablePopulation population = populations[whichModel];
+			statistics[whichModel].searchNanos = searchNanos;
+			final long selectionStart = System.nanoTime();
+			final int tableCount = population.size();
+			if (tableCount < desiredQuantileCount) {
+				throw new ProcessingException("Unable to generate desired number of table quantiles");
+			}
 
-				// Make sure that the table we want hasn't been used yet:
-				if (matchingTable == priorMatchingTable) {
-					// but don't go off the end:
-					if (matchingTable == (tablePopulationSize - 1)) {
-						break;
+			outAllTableScores[whichModel] = population.getQuantileScores(model.getUseOddsRatio());
+			if (document.savePopulation && (model.file != null)) {
+				PenetranceTablePopulationFile.write(calcCombinedFilename(model.file, "_Population", "gmtp"), population,
+						model.getUseOddsRatio());
+			}
+
+			final int[] representatives = SnpGenSimulator.selectRepresentativeIndices(outAllTableScores[whichModel], desiredQuantileCount);
+			final PenetranceTable[] modelTables = new PenetranceTable[desiredQuantileCount];
+			for (int whichQuantile = 0; whichQuantile < desiredQuantileCount; ++whichQuantile) {
+				final int whichTable = representatives[whichQuantile];
+				if (population.keepsTables) {
+					modelTables[whichQuantile] = population.getTable(whichTable);
+				} else {
+					// A table chosen for more than one quantile is regenerated only once:
+					for (int priorQuantile = 0; priorQuantile < whichQuantile; ++priorQuantile) {
+						if (representatives[priorQuantile] == whichTable) {
+							modelTables[whichQuantile] = modelTables[priorQuantile];
+							break;
+						}
+					}
+					if (modelTables[whichQuantile] == null) {
+						modelTables[whichQuantile] = regeneratePenetranceTable(inModels.get(0), model.heritability.getDouble(),
+								population.getTrySeed(whichTable));
 					}
-					++matchingTable;
-				}
-				modelTables[quantileIter] = tablePopulation[matchingTable];
-				priorMatchingTable = matchingTable;
-				++quantileIter;
-				if (quantileIter >= inQuantileCount) {
-					break;
 				}
 			}
-		}
-		// Take care of any quantiles on the end that have not been set yet.
-		// (If inQuantileCount == 1, then the quantile will have been set in the
-		// loop above, unless all of the reliefAccuracyScores are identical --
-		// but in that case, it doesn't matter which table we use, so we might
-		// as well use the last one.)
-		quantileIter = inQuantileCount - 1;
-		// If the last quantile hasn't been set yet,
-		if (modelTables[quantileIter] == null) {
-			tableIter = tablePopulationSize - 1;
-			// then set the last quantile to the last table,
-			modelTables[quantileIter--] = tablePopulation[tableIter--];
-			// and check the quantile before it:
-			while ((quantileIter >= 0)
-					&& ((modelTables[quantileIter] == null) || (modelTables[quantileIter] == modelTables[quantileIter + 1]))) {
-				modelTables[quantileIter--] = tablePopulation[tableIter--];
+			if (document.quantileTargetTolerance != null) {
+				optimizeQuantileTables(modelTables, outAllTableScores[whichModel], model, groupRandom);
 			}
+			model.setPenetranceTables(modelTables);
+			statistics[whichModel].selectionNanos = System.nanoTime() - selectionStart;
 		}
+		return outAllTableScores;
 	}
 
-	private void setRandomSeed(final Integer inSeed) {
-		SnpGenSimulator.setRandomSeed(random, inSeed);
+	private boolean useLegacyModelGeneration() {
+		return (document != null) && document.legacyModelGeneration;
 	}
 
 	public static int[][] parseDataInputFile(final File inInputFile, final StringBuilder outHeader) throws FileNotFoundException,
@@ -700,9 +1114,223 @@ public class SnpGenSimulator {
 		return outDataset;
 	}
 
-	private static int[][] generateAndSaveDataset(final Random inRandom, final int[][] inPredictiveDataset, final int[][] inNoiseDataset,
-			final PenetranceTable[] inTables, final DocDataset dd, final boolean inReturnDataset,
-			final File inDestFile,
+	// Add the phase times of a search task's tries to each model's statistics.
+	private static void addSearchTaskTimes(final ModelGenerationStatistics[] ioStatistics, final SearchTaskResult inResult) {
+		for (int i = 0; i < ioStatistics.length; ++i) {
+			ioStatistics[i].generationNanos += inResult.generationNanos;
+			ioStatistics[i].scoringNanos += inResult.scoringNanos;
+			ioStatistics[i].normalizationNanos += inResult.normalizationNanos[i];
+		}
+	}
+
+	// Add each of one try's accepted tables (one per heritability, null if rejected; inTables itself is null if the try failed before
+	// normalization) to its population, and record the try's outcome in that population's statistics, unless the population is
+	// already full or done by inBudget's rules. Returns the number of populations that are.
+	private static int addToPenetranceTablePopulations(final PenetranceTablePopulation[] ioPopulations,
+			final ModelGenerationStatistics[] ioStatistics, final ModelSearchBudget inBudget, final PenetranceTable[] inTables,
+			final TryOutcome[] inOutcomes, final long inTrySeed, final int inDesiredTableCount) {
+		for (int i = 0; i < ioPopulations.length; ++i) {
+			final PenetranceTablePopulation population = ioPopulations[i];
+			if (!inBudget.isDone(population, inDesiredTableCount)) {
+				// (A population that is not done was wanted when the try ran, so the try has an outcome for it)
+				ioStatistics[i].recordTry(inOutcomes[i]);
+				if ((inTables != null) && (inTables[i] != null)) {
+					population.add(inTables[i], inTrySeed);
+				}
+			}
+		}
+		return inBudget.countDone(ioPopulations, inDesiredTableCount);
+	}
+
+	// The target quantile scores: spread evenly from the lowest to the highest of inSortedScores, or the middle if there is one quantile.
+	static double[] calcQuantileTargets(final double[] inSortedScores, final int inQuantileCount) {
+		final double[] outTargetRASs = new double[inQuantileCount];
+		final double minRAS = inSortedScores[0];
+		final double maxRAS = inSortedScores[inSortedScores.length - 1];
+		if (inQuantileCount == 1) {
+			outTargetRASs[0] = (minRAS + maxRAS) / 2F;
+		} else {
+			final double delta = (maxRAS - minRAS) / (inQuantileCount - 1);
+			for (int whichQuantile = 0; whichQuantile < inQuantileCount; ++whichQuantile) {
+				outTargetRASs[whichQuantile] = minRAS + (whichQuantile * delta);
+			}
+		}
+		return outTargetRASs;
+	}
+
+	// Returns the cell samplers of inTables for the instances of a dataset: for continuous endpoints, one per table that picks cells by
+	// their genotype probabilities; otherwise one per table for cases and one per table for controls, which pick cells by the
+	// probability that a case (or control) lands in them. The samplers depend only on the tables, so they are made once for all the
+	// replicates of a quantile.
+	private static CellSampler[][] createCellSamplers(final PenetranceTable[] inTables, final boolean inCreateContinuousEndpoints) {
+		double prob;
+		double penetrance;
+		double sumCaseFractions, sumControlFractions;
+		double[][] caseIntervals, controlIntervals;
+		final int tableCount = inTables.length;
+		if (inCreateContinuousEndpoints) {
+			// for continuous endpoints only need to calculate # of samples
+			// for each genotype since there are no case and controls
+			final CellSampler[] genotypeSamplers = new CellSampler[tableCount];
+			for (int j = 0; j < tableCount; ++j) {
+				double sumGenotypeFractions = 0.0;
+				final double[] genotypeIntervals = new double[inTables[j].cellCount];
+				// Sum up all the count fractions, storing the partial
+				// count-fractions to the array
+				for (int i = 0; i < inTables[j].cellCount; ++i) {
+					// Note the cell probabilities use the
+					// alleleFrequencies which were provided when the
+					// penetrance table was constructed
+					prob = inTables[j].getCellProbability(i);
+
+					sumGenotypeFractions += prob;
+					genotypeIntervals[i] = sumGenotypeFractions;
+				}
+				assert Math.abs(sumGenotypeFractions - 1.0) < SnpGenSimulator.kErrorLimit;
+				// Now, the length of the interval from genotypeIntervals[i-1]
+				// to
+				// genotypeIntervals[i]
+				// == the proportion of samples that will have that cells
+				// genotype
+				genotypeSamplers[j] = new CellSampler(genotypeIntervals);
+			}
+			return new CellSampler[][] { genotypeSamplers };
+		} else {
+			// Calculate the values of caseIntervals and controlIntervals,
+			// such
+			// that the length of each interval is the desired probability
+			// of a given case or control (respectively) landing in a given
+			// cell.
+			// This is used for sampling the cells in the dataset.
+			caseIntervals = new double[tableCount][];
+			controlIntervals = new double[tableCount][];
+			final CellSampler[] caseSamplers = new CellSampler[tableCount];
+			final CellSampler[] controlSamplers = new CellSampler[tableCount];
+			for (int j = 0; j < tableCount; ++j) {
+				sumCaseFractions = 0;
+				sumControlFractions = 0;
+				caseIntervals[j] = new double[inTables[j].cellCount];
+				controlIntervals[j] = new double[inTables[j].cellCount];
+				// Sum up all the case-fractions, storing the partial
+				// case-fractions to the caseIntervals array; do the same
+				// with
+				// controls:
+				for (int i = 0; i < inTables[j].cellCount; ++i) {
+					// Note the cell probabilities use the
+					// alleleFrequencies which were provided when the
+					// penetrance table was constructed
+					prob = inTables[j].getCellProbability(i);
+					penetrance = inTables[j].getPenetranceValue(i);
+
+					sumCaseFractions += prob * penetrance;
+					sumControlFractions += prob * (1 - penetrance);
+					caseIntervals[j][i] = sumCaseFractions;
+					controlIntervals[j][i] = sumControlFractions;
+				}
+				assert Math.abs((sumCaseFractions + sumControlFractions) - 1.0) < SnpGenSimulator.kErrorLimit;
+				// Divide each element of caseIntervals and controlIntervals
+				// by
+				// the appropriate total sum.
+				for (int i = 0; i < inTables[j].cellCount; ++i) {
+					caseIntervals[j][i] /= sumCaseFractions;
+					controlIntervals[j][i] /= sumControlFractions;
+				}
+				// Now, the length of the interval from caseIntervals[i-1] to
+				// caseIntervals[i]
+				// == the probability that a random case is in the ith cell of
+				// the
+				// penetrance table; similarly for controls.
+				caseSamplers[j] = new CellSampler(caseIntervals[j]);
+				controlSamplers[j] = new CellSampler(controlIntervals[j]);
+			}
+			return new CellSampler[][] { caseSamplers, controlSamplers };
+		}
+	}
+
+	private static PenetranceTablePopulation[] createPenetranceTablePopulations(final int inCount, final boolean inKeepTables) {
+		final PenetranceTablePopulation[] outPopulations = new PenetranceTablePopulation[inCount];
+		for (int i = 0; i < inCount; ++i) {
+			outPopulations[i] = new PenetranceTablePopulation(inKeepTables);
+		}
+		return outPopulations;
+	}
+
+	// Mix a try (or replicate) index into a base seed, so that every index gets an independent, reproducible random stream.
+	// This is the SplitMix64 finalizer applied to a Weyl sequence.
+	static long deriveSeed(final long inBaseSeed, final long inIndex) {
+		return RandomSource.mix64(inBaseSeed + ((inIndex + 1) * 0x9E3779B97F4A7C15L));
+	}
+
+	// Run one try of the model search for each of inDesiredHeritabilities whose entry in inIsHeritabilityWanted is true, as the first
+	// try of ioResult, which must be clear(). Its tables are, for each heritability, a copy of the normalized table if it was accepted,
+	// or null if it was rejected or not wanted; they are null if the random table could not be generated.
+	// The random table is generated, scaled and adjusted for prevalence only once, since none of that depends on the heritability.
+	// That work is done in this thread's scratch table, which is reset and reused by the thread's next try.
+	private static void generateCandidatePenetranceTables(final RandomSource inRandom, final double[] inDesiredHeritabilities,
+			final boolean[] inIsHeritabilityWanted, final double inHeritabilityTolerance, final Double inDesiredPrevalence,
+			final int inAttributeCount, final String[] inAttributeNames, final GenotypeProbabilities inGenotypeProbabilities,
+			final NullSpaceTableGenerator inNullSpaceTableGenerator, final boolean inUseLegacyModelGeneration, final SearchTaskResult ioResult)
+			throws Exception {
+		final long generationStart = System.nanoTime();
+		PenetranceTable currentPenetranceTable = SnpGenSimulator.scratchPenetranceTable.get();
+		if ((currentPenetranceTable == null) || (currentPenetranceTable.attributeCount != inAttributeCount)) {
+			currentPenetranceTable = new PenetranceTable(3, inAttributeCount);
+			SnpGenSimulator.scratchPenetranceTable.set(currentPenetranceTable);
+		} else {
+			currentPenetranceTable.reset();
+		}
+		final TryOutcome failure = SnpGenSimulator.generateUnnormalizedCandidatePenetranceTable(inRandom, currentPenetranceTable,
+				inDesiredPrevalence, inAttributeNames, inGenotypeProbabilities, inNullSpaceTableGenerator, inUseLegacyModelGeneration);
+		final long scoringStart = System.nanoTime();
+		ioResult.generationNanos += scoringStart - generationStart;
+		if (failure != null) {
+			SnpGenSimulator.fillTryOutcomes(ioResult.outcomes[0], inIsHeritabilityWanted, failure);
+			return;
+		}
+		final double herit = SnpGenSimulator.prepareCandidatePenetranceTable(currentPenetranceTable, inUseLegacyModelGeneration);
+		ioResult.scoringNanos += System.nanoTime() - scoringStart;
+		ioResult.tables[0] = SnpGenSimulator.normalizeCandidatePenetranceTable(currentPenetranceTable, herit, inDesiredHeritabilities,
+				inIsHeritabilityWanted, inHeritabilityTolerance, inUseLegacyModelGeneration, ioResult.outcomes[0], ioResult.normalizationNanos);
+	}
+
+	// Generate a random, unnormalized table in ioTable, which must be new or reset(), with inNullSpaceTableGenerator if it is not null
+	// and by propagation otherwise. Returns null if that succeeded, or else the outcome of the failed try.
+	private static TryOutcome generateUnnormalizedCandidatePenetranceTable(final RandomSource inRandom, final PenetranceTable ioTable,
+			final Double inDesiredPrevalence, final String[] inAttributeNames, final GenotypeProbabilities inGenotypeProbabilities,
+			final NullSpaceTableGenerator inNullSpaceTableGenerator, final boolean inUseLegacyModelGeneration) throws Exception {
+		PenetranceTable.ErrorState error;
+		ioTable.useLegacyCellSelection = inUseLegacyModelGeneration;
+		ioTable.desiredPrevalence = inDesiredPrevalence;
+		ioTable.setAttributeNames(inAttributeNames);
+		ioTable.initialize(inRandom, inGenotypeProbabilities);
+		if (inNullSpaceTableGenerator == null) {
+			error = ioTable.generateUnnormalized(inRandom);
+		} else {
+			error = ioTable.generateUnnormalized(inNullSpaceTableGenerator);
+		}
+		if (error == PenetranceTable.ErrorState.Ambiguous) {
+			return TryOutcome.ambiguous;
+		} else if (error == PenetranceTable.ErrorState.Conflict) {
+			return TryOutcome.conflict;
+		}
+		return null;
+	}
+
+	private static PenetranceTableBatch getScratchPenetranceTableBatch(final int inAttributeCount,
+			final GenotypeProbabilities inGenotypeProbabilities, final int inMaxTableCount) {
+		PenetranceTableBatch outBatch = SnpGenSimulator.scratchPenetranceTableBatch.get();
+		if ((outBatch == null) || !outBatch.matches(inAttributeCount, inGenotypeProbabilities)) {
+			outBatch = new PenetranceTableBatch(inAttributeCount, inGenotypeProbabilities, inMaxTableCount);
+			SnpGenSimulator.scratchPenetranceTableBatch.set(outBatch);
+		}
+		return outBatch;
+	}
+
+	// Generate a dataset from inTables, picking their cells with inCellSamplers (see createCellSamplers()), and its noise attributes
+	// with inNoiseKernel.
+	private static int[][] generateAndSaveDataset(final RandomSource inRandom, final int[][] inPredictiveDataset, final int[][] inNoiseDataset,
+			final PenetranceTable[] inTables, final CellSampler[][] inCellSamplers, final DocDataset dd,
+			final SnpGenDocument.NOISE_KERNEL inNoiseKernel, final boolean inReturnDataset, final File inDestFile,
 			final StringBuilder outHeader, final double[] modelFractions) throws Exception {
 
 		int attributeCountPredictiveFromTables = 0;
@@ -744,11 +1372,6 @@ public class SnpGenSimulator {
 		final int noiseAttributeCount = attributeCountNoiseGenerated + attributeCountNoiseFile;
 		assert totalAttributeCount == (predictiveAttributeCount + noiseAttributeCount);
 
-		double prob;
-		double penetrance;
-		PenetranceTable.CellId cellId;
-		double sumCaseFractions, sumControlFractions;
-		double[][] caseIntervals, controlIntervals;
 		int[][] outputArray = null;
 		if (inReturnDataset) {
 			outputArray = new int[dd.totalCount.getInteger().intValue()][totalAttributeCount + 1];
@@ -807,110 +1430,37 @@ public class SnpGenSimulator {
 				final double maf = (inRandom.nextDouble() * alleleFrequencyRange) + alleleFrequencyMin;
 				PenetranceTable.calcAlleleFrequencies(maf, alleleFrequencies[i]);
 			}
+			NoiseGenotypeKernel noiseKernel = null;
+			if ((inNoiseKernel != SnpGenDocument.NOISE_KERNEL.perGenotype) && (attributeCountNoiseGenerated > 0)) {
+				noiseKernel = new NoiseGenotypeKernel(alleleFrequencies, inNoiseKernel == SnpGenDocument.NOISE_KERNEL.bitSliced);
+			}
 
+			final int tableCount = inTables.length;
+			for (int j = 0; j < tableCount; ++j) {
+				inTables[j].clear();
+			}
 			if (dd.createContinuousEndpoints.getBoolean()) {
-				// for continuous endpoints only need to calculate # of samples
-				// for each genotype since there are no case and controls
-				final int tableCount = inTables.length;
-				final double[][] genotypeIntervals = new double[tableCount][];
-				for (int j = 0; j < tableCount; ++j) {
-					cellId = new PenetranceTable.CellId(inTables[j].attributeCount);
-					double sumGenotypeFractions = 0.0;
-					genotypeIntervals[j] = new double[inTables[j].cellCount];
-					// Sum up all the count fractions, storing the partial
-					// count-fractions to the array
-					for (int i = 0; i < inTables[j].cellCount; ++i) {
-						inTables[j].masterIndexToCellId(i, cellId);
-						// Note the getProbabilityProduct uses the
-						// alleleFrequencies which were provided when the
-						// penetrance table was constructed
-						prob = inTables[j].getProbabilityProduct(cellId);
-
-						sumGenotypeFractions += prob;
-						genotypeIntervals[j][i] = sumGenotypeFractions;
-					}
-					assert Math.abs(sumGenotypeFractions - 1.0) < SnpGenSimulator.kErrorLimit;
-				}
-				// Now, the length of the interval from genotypeIntervals[i-1]
-				// to
-				// genotypeIntervals[i]
-				// == the proportion of samples that will have that cells
-				// genotype
-
-				for (int j = 0; j < tableCount; ++j) {
-					inTables[j].clear();
-				}
 				SnpGenSimulator.printInstances(dd, inRandom, inPredictiveDataset, inNoiseDataset, 0, inTables,
-						attributeCountNoiseGenerated, alleleFrequencies, 1, dd.totalCount.getInteger(), genotypeIntervals, outputStream,
-						outputArray, 0, modelFractions);
+						attributeCountNoiseGenerated, alleleFrequencies, noiseKernel, 1, dd.totalCount.getInteger(), inCellSamplers[0],
+						outputStream, outputArray, 0, modelFractions);
 			} else {
-				// Calculate the values of caseIntervals and controlIntervals,
-				// such
-				// that the length of each interval is the desired probability
-				// of a given case or control (respectively) landing in a given
-				// cell.
-				// This is used for sampling the cells in the dataset.
-				final int tableCount = inTables.length;
-				caseIntervals = new double[tableCount][];
-				controlIntervals = new double[tableCount][];
-				for (int j = 0; j < tableCount; ++j) {
-					cellId = new PenetranceTable.CellId(inTables[j].attributeCount);
-					sumCaseFractions = 0;
-					sumControlFractions = 0;
-					caseIntervals[j] = new double[inTables[j].cellCount];
-					controlIntervals[j] = new double[inTables[j].cellCount];
-					// Sum up all the case-fractions, storing the partial
-					// case-fractions to the caseIntervals array; do the same
-					// with
-					// controls:
-					for (int i = 0; i < inTables[j].cellCount; ++i) {
-						inTables[j].masterIndexToCellId(i, cellId);
-						// Note the getProbabilityProduct uses the
-						// alleleFrequencies which were provided when the
-						// penetrance table was constructed
-						prob = inTables[j].getProbabilityProduct(cellId);
-						penetrance = inTables[j].getPenetranceValue(cellId);
-
-						sumCaseFractions += prob * penetrance;
-						sumControlFractions += prob * (1 - penetrance);
-						caseIntervals[j][i] = sumCaseFractions;
-						controlIntervals[j][i] = sumControlFractions;
-					}
-					assert Math.abs((sumCaseFractions + sumControlFractions) - 1.0) < SnpGenSimulator.kErrorLimit;
-					// Divide each element of caseIntervals and controlIntervals
-					// by
-					// the appropriate total sum.
-					for (int i = 0; i < inTables[j].cellCount; ++i) {
-						caseIntervals[j][i] /= sumCaseFractions;
-						controlIntervals[j][i] /= sumControlFractions;
-					}
-				}
-				// Now, the length of the interval from caseIntervals[i-1] to
-				// caseIntervals[i]
-				// == the probability that a random case is in the ith cell of
-				// the
-				// penetrance table; similarly for controls.
-
-				for (int j = 0; j < tableCount; ++j) {
-					inTables[j].clear();
-				}
 				final int caseCount = (int) Math.round(dd.caseProportion.value * instanceCount);
 				final int controlCount = instanceCount - caseCount;
 				// write out all the cases
 				SnpGenSimulator.printInstances(dd, inRandom, inPredictiveDataset, inNoiseDataset, 0, inTables,
 						attributeCountNoiseGenerated,
-						alleleFrequencies, 1, caseCount, caseIntervals, outputStream, outputArray, 0,
+						alleleFrequencies, noiseKernel, 1, caseCount, inCellSamplers[0], outputStream, outputArray, 0,
 						modelFractions);
 				// write out all the controls
 				SnpGenSimulator.printInstances(dd, inRandom, inPredictiveDataset, inNoiseDataset, caseCount, inTables,
-						attributeCountNoiseGenerated, alleleFrequencies, 0, controlCount, controlIntervals, outputStream, outputArray,
-						caseCount, modelFractions);
+						attributeCountNoiseGenerated, alleleFrequencies, noiseKernel, 0, controlCount, inCellSamplers[1], outputStream,
+						outputArray, caseCount, modelFractions);
 			}
 		} // end try-release on dataset printWriter
 		return outputArray;
 	}
 
-	private static int noiseToOutput(final Random inRandom, final double[] inAlleleFrequencies, final PrintWriter inOutputStream,
+	private static int noiseToOutput(final RandomSource inRandom, final double[] inAlleleFrequencies, final PrintWriter inOutputStream,
 			final int[][] inOutputArray, final int inWhichOutputLine, final int inWhichOutputColumn) {
 		int outWhich;
 		final double rand = inRandom.nextDouble();
@@ -931,11 +1481,74 @@ public class SnpGenSimulator {
 	}
 
 
-	private static void printInstances(final DocDataset dd, final Random inRandom, final int[][] inPredictiveDataset,
+	// Make, from a generated candidate, a normalized and row-sum-checked copy for each wanted heritability that it can reach, given the
+	// heritability inUnadjustedHeritability that prepareCandidatePenetranceTable() (or a PenetranceTableBatch) found for it.
+	// Candidates that cannot reach a target are filtered out on that heritability alone, before anything is copied.
+	// Each wanted heritability's outcome is written to outOutcomes, and the time its copy took added to ioNormalizationNanos.
+	private static PenetranceTable[] normalizeCandidatePenetranceTable(final PenetranceTable inCandidate, final double inUnadjustedHeritability,
+			final double[] inDesiredHeritabilities, final boolean[] inIsHeritabilityWanted, final double inHeritabilityTolerance,
+			final boolean inUseLegacyModelGeneration, final TryOutcome[] outOutcomes, final long[] ioNormalizationNanos)
+			throws CloneNotSupportedException {
+		final double herit = inUnadjustedHeritability;
+		final PenetranceTable[] outTables = new PenetranceTable[inDesiredHeritabilities.length];
+		for (int whichHeritability = 0; whichHeritability < inDesiredHeritabilities.length; ++whichHeritability) {
+			final double desiredHeritability = inDesiredHeritabilities[whichHeritability];
+			if (!inIsHeritabilityWanted[whichHeritability]) {
+				continue;
+			}
+			if (((inHeritabilityTolerance >= 0) && !(Math.abs((herit - desiredHeritability) / desiredHeritability) < inHeritabilityTolerance))
+					// adjustHeritability() can only scale the penetrances towards the prevalence:
+					|| (Math.sqrt(desiredHeritability / herit) > 1.0D)) {
+				outOutcomes[whichHeritability] = TryOutcome.heritabilityUnreachable;
+				continue;
+			}
+			final long start = System.nanoTime();
+			final PenetranceTable table = (PenetranceTable) inCandidate.clone();
+			if (inUseLegacyModelGeneration) {
+				table.desiredHeritability = desiredHeritability;
+				table.adjustHeritability();
+			} else {
+				table.applyFusedNormalization(desiredHeritability);
+			}
+			if (!table.normalized) {
+				outOutcomes[whichHeritability] = TryOutcome.heritabilityUnreachable;
+			} else {
+				table.checkRowSums();
+				if (table.rowSumsValid) {
+					outTables[whichHeritability] = table;
+					outOutcomes[whichHeritability] = TryOutcome.accepted;
+				} else {
+					outOutcomes[whichHeritability] = TryOutcome.rowSumsInvalid;
+				}
+			}
+			ioNormalizationNanos[whichHeritability] += System.nanoTime() - start;
+		}
+		return outTables;
+	}
+
+	// Returns the heritability of the generated candidate once scaled to [0, 1] and adjusted for prevalence.
+	private static double prepareCandidatePenetranceTable(final PenetranceTable ioCandidate, final boolean inUseLegacyModelGeneration) {
+		if (inUseLegacyModelGeneration) {
+			// Normalize step by step, exactly as earlier versions did:
+			ioCandidate.scaleToUnitInterval();
+			ioCandidate.adjustPrevalence();
+			return ioCandidate.calcHeritability();
+		} else {
+			// The values are left unnormalized, to be normalized for each target by applyFusedNormalization():
+			return ioCandidate.prepareFusedNormalization();
+		}
+	}
+
+	private static void printDeadlineMessage(final int inTriesDone) {
+		System.out.println("The model search reached its time limit after " + inTriesDone
+				+ " tries; the quantiles are selected from the models found so far.");
+	}
+
+	private static void printInstances(final DocDataset dd, final RandomSource inRandom, final int[][] inPredictiveDataset,
 			final int[][] inNoiseDataset,
 			final int inWhichFirstNoise, final PenetranceTable[] inTables, final int inNoiseAttributeCount,
-			final double[][] inAlleleFrequencies, final int inInstanceClass, final int inInstanceCount,
-			final double[][] inInstanceIntervals, final PrintWriter inOutputStream, final int[][] inOutputArray,
+			final double[][] inAlleleFrequencies, final NoiseGenotypeKernel inNoiseKernel, final int inInstanceClass,
+			final int inInstanceCount, final CellSampler[] inCellSamplers, final PrintWriter inOutputStream, final int[][] inOutputArray,
 			final int inFirstOutputLine, final double[] modelFractions)
 					throws Exception {
 		double rand;
@@ -966,7 +1579,7 @@ public class SnpGenSimulator {
 		// 0.3 and Table 2 has a contribution-fraction of 0.7,
 		// then for the first 0.3 of the instances we generate the columns
 		// corresponding to Table 1 according to Table 1's signal (ie, according
-		// to Table 1's inInstanceIntervals)
+		// to Table 1's cell sampler)
 		// and we generate the columns corresponding to Table 2 as noise;
 		// for the next 0.7 of the instances we generate noise for Table 1 and
 		// signal for Table 2.
@@ -1012,9 +1625,14 @@ public class SnpGenSimulator {
 			}
 
 			// Generate noise attributes
-			for (int j = 0; j < inNoiseAttributeCount; ++j) {
-				SnpGenSimulator
-				.noiseToOutput(inRandom, inAlleleFrequencies[j], inOutputStream, inOutputArray, whichOutputLine, destWhich++);
+			if (inNoiseKernel != null) {
+				inNoiseKernel.writeRow(inRandom, inOutputStream, inOutputArray, whichOutputLine, destWhich);
+				destWhich += inNoiseAttributeCount;
+			} else {
+				for (int j = 0; j < inNoiseAttributeCount; ++j) {
+					SnpGenSimulator
+					.noiseToOutput(inRandom, inAlleleFrequencies[j], inOutputStream, inOutputArray, whichOutputLine, destWhich++);
+				}
 			}
 
 			if (inPredictiveDataset != null) {
@@ -1061,11 +1679,7 @@ public class SnpGenSimulator {
 						cellId.setIndex(j, whichValue);
 					}
 					whichCell = cellId.toMasterIndex(3);
-					if (inInstanceClass == 1) {
-						++table.cellCaseCount[whichCell];
-					} else {
-						++table.cellControlCount[whichCell];
-					}
+					table.countInstance(whichCell, inInstanceClass == 1);
 				}
 				else { //must either be hierarchical or it is heterogeneous and this row uses the current table
 					assert (dd.multipleModelDatasetType.getValue() == SnpGenDocument.MIXED_MODEL_DATASET_TYPE.hierarchical)
@@ -1074,18 +1688,12 @@ public class SnpGenSimulator {
 					// Pick a random number from 0 to 1 and see which
 					// instance-interval it's in:
 					rand = inRandom.nextDouble();
-					whichCell = -1;
-					for (int k = 0; k < table.cellCount; ++k) {
-						if (rand < inInstanceIntervals[whichTable][k]) {
-							whichCell = k;
-							break;
-						}
-					}
+					whichCell = inCellSamplers[whichTable].sample(rand);
 
 					if (dd.createContinuousEndpoints.getBoolean()) {
 						// if creating continuous endpoints use the cell's
 						// penetrance value as the mean of a distribution
-						final double penetranceForCell = table.cells[whichCell].getValue();
+						final double penetranceForCell = table.getPenetranceValue(whichCell);
 						final double nextGaussian = inRandom.nextGaussian();
 						// see
 						// http://www.javamex.com/tutorials/random_numbers/gaussian_distribution_2.shtml
@@ -1112,11 +1720,7 @@ public class SnpGenSimulator {
 						phenotypeValue = inInstanceClass;
 					}
 					assert (0 <= whichCell) && (whichCell < table.cellCount);
-					if (inInstanceClass == 1) {
-						++table.cellCaseCount[whichCell];
-					} else {
-						++table.cellControlCount[whichCell];
-					}
+					table.countInstance(whichCell, inInstanceClass == 1);
 					table.masterIndexToCellId(whichCell, cellId);
 					for (int k = 0; k < table.attributeCount; ++k) {
 						final int alleleSymbol = SnpGenSimulator.kAlleleSymbols[cellId.getIndex(k)];
@@ -1138,9 +1742,129 @@ public class SnpGenSimulator {
 
 	}
 
-	private static void setRandomSeed(final Random inRandom, final Integer inSeed) {
-		if (inSeed != null) {
-			inRandom.setSeed(inSeed);
+	// Record inOutcome for each wanted heritability of a try that failed before normalization.
+	private static void fillTryOutcomes(final TryOutcome[] outOutcomes, final boolean[] inIsHeritabilityWanted, final TryOutcome inOutcome) {
+		for (int i = 0; i < outOutcomes.length; ++i) {
+			if (inIsHeritabilityWanted[i]) {
+				outOutcomes[i] = inOutcome;
+			}
+		}
+	}
+
+	private static boolean[] findUnfilledPenetranceTablePopulations(final PenetranceTablePopulation[] inPopulations,
+			final ModelSearchBudget inBudget, final int inDesiredTableCount) {
+		final boolean[] outIsUnfilled = new boolean[inPopulations.length];
+		for (int i = 0; i < outIsUnfilled.length; ++i) {
+			outIsUnfilled[i] = !inBudget.isDone(inPopulations[i], inDesiredTableCount);
+		}
+		return outIsUnfilled;
+	}
+
+	private static <T> T getTaskResult(final Future<T> inFuture) throws Exception {
+		try {
+			return inFuture.get();
+		} catch (final ExecutionException ee) {
+			final Throwable cause = ee.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw ee;
+		}
+	}
+
+	// Choose inQuantileCount population tables, by their positions in inSortedScores, with inStrategy.
+	static int[] selectIndices(final SnpGenDocument.SELECTION_STRATEGY inStrategy, final double[] inSortedScores, final int inQuantileCount) {
+		if (inStrategy == SnpGenDocument.SELECTION_STRATEGY.rank) {
+			return SnpGenSimulator.selectRankIndices(inSortedScores.length, inQuantileCount);
+		}
+		return SnpGenSimulator.selectRepresentativeIndices(inSortedScores, inQuantileCount);
+	}
+
+	// Choose the middle table of each of inQuantileCount equal-sized groups of a sorted population of inPopulationSize tables.
+	static int[] selectRankIndices(final int inPopulationSize, final int inQuantileCount) {
+		final int[] outIndices = new int[inQuantileCount];
+		for (int whichQuantile = 0; whichQuantile < inQuantileCount; ++whichQuantile) {
+			outIndices[whichQuantile] = (int) ((((2L * whichQuantile) + 1) * inPopulationSize) / (2L * inQuantileCount));
+		}
+		return outIndices;
+	}
+
+	// Choose, by their positions in inSortedScores, the population tables whose scores are closest to inQuantileCount targets spread
+	// evenly from the lowest score to the highest. In a small population one table can be chosen for more than one quantile.
+	static int[] selectRepresentativeIndices(final double[] inSortedScores, final int inQuantileCount) {
+		final double[] targetRASs = SnpGenSimulator.calcQuantileTargets(inSortedScores, inQuantileCount);
+
+		final int tablePopulationSize = inSortedScores.length;
+
+		int tableIter = 0;
+		int quantileIter;
+		int matchingTable;
+		int priorMatchingTable = -1;
+
+		// Initialize the outputs to -1, for "not set yet":
+		final int[] outIndices = new int[inQuantileCount];
+		Arrays.fill(outIndices, -1);
+
+		quantileIter = 0;
+		if (inQuantileCount > 1) {
+			// If there's more than one quantile, then we know that the first
+			// quantile is the very first table.
+			outIndices[quantileIter++] = tableIter++;
+			priorMatchingTable = 0;
+		}
+		for (; tableIter < tablePopulationSize; ++tableIter) {
+			// Look for the first reliefAccuracyScore greater than the current
+			// target:
+			if (inSortedScores[tableIter] > targetRASs[quantileIter]) {
+				// If the table before the current table is closer to the target
+				// than the current table, and is available,
+				// then use it; else use the current table:
+				if ((tableIter > 0)
+						&& (Math.abs(inSortedScores[tableIter - 1] - targetRASs[quantileIter]) < Math.abs(inSortedScores[tableIter]
+								- targetRASs[quantileIter]))) {
+					matchingTable = tableIter - 1;
+				} else {
+					matchingTable = tableIter;
+				}
+
+				// Make sure that the table we want hasn't been used yet:
+				if (matchingTable == priorMatchingTable) {
+					// but don't go off the end:
+					if (matchingTable == (tablePopulationSize - 1)) {
+						break;
+					}
+					++matchingTable;
+				}
+				outIndices[quantileIter] = matchingTable;
+				priorMatchingTable = matchingTable;
+				++quantileIter;
+				if (quantileIter >= inQuantileCount) {
+					break;
+				}
+			}
+		}
+		// Take care of any quantiles on the end that have not been set yet.
+		// (If inQuantileCount == 1, then the quantile will have been set in the
+		// loop above, unless all of the reliefAccuracyScores are identical --
+		// but in that case, it doesn't matter which table we use, so we might
+		// as well use the last one.)
+		quantileIter = inQuantileCount - 1;
+		// If the last quantile hasn't been set yet,
+		if (outIndices[quantileIter] == -1) {
+			tableIter = tablePopulationSize - 1;
+			// then set the last quantile to the last table,
+			outIndices[quantileIter--] = tableIter--;
+			// and check the quantile before it:
+			while ((quantileIter >= 0) && ((outIndices[quantileIter] == -1) || (outIndices[quantileIter] == outIndices[quantileIter + 1]))) {
+				outIndices[quantileIter--] = tableIter--;
+			}
+		}
+		return outIndices;
+	}
+
+	private static void sortPenetranceTablePopulations(final PenetranceTablePopulation[] ioPopulations, final boolean inUseOddsRatio) {
+		for (final PenetranceTablePopulation population : ioPopulations) {
+			population.sort(inUseOddsRatio);
 		}
 	}
 
@@ -1165,6 +1889,36 @@ public class SnpGenSimulator {
 		}
 	}
 
+	// The tables and outcomes of a run of consecutive model-search tries, and the time their phases took. It is filled in by the thread
+	// that ran the tries, and then added to the populations and the models' statistics in try order.
+	private static class SearchTaskResult {
+		// [try][heritability]: a normalized copy of the try's table if it was accepted, else null; a try's entry is null if its
+		// random table could not be generated
+		public final PenetranceTable[][] tables;
+		// [try][heritability]: the try's outcome for each heritability that was wanted, else null
+		public final TryOutcome[][] outcomes;
+		public long generationNanos;
+		public long scoringNanos;
+		// [heritability]
+		public final long[] normalizationNanos;
+
+		public SearchTaskResult(final int inTryCount, final int inHeritabilityCount) {
+			tables = new PenetranceTable[inTryCount][];
+			outcomes = new TryOutcome[inTryCount][inHeritabilityCount];
+			normalizationNanos = new long[inHeritabilityCount];
+		}
+
+		public void clear() {
+			Arrays.fill(tables, null);
+			for (final TryOutcome[] tryOutcomes : outcomes) {
+				Arrays.fill(tryOutcomes, null);
+			}
+			generationNanos = 0;
+			scoringNanos = 0;
+			Arrays.fill(normalizationNanos, 0);
+		}
+	}
+
 	public interface ProgressHandler {
 		public void setMaximum(int inMax);
 
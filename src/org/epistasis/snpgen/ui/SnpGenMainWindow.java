@@ -988,6 +988,7 @@ public class SnpGenMainWindow implements ModelTable.UpdateListener // implements
 			simulator.writeTablesAndScoresToFile(modelList, allTableScores, desiredQuantileCount);
 			simulator.combineModelTablesIntoQuantiles(modelList, inDocument.modelInputFiles);
 			simulator.generateDatasets(null);
+			simulator.selectFromPopulationFiles(inDocument.populationInputFiles, desiredQuantileCount);
 		} catch (final Exception ex) {
 			System.err.println(ex.getMessage());
 			ex.printStackTrace();